@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of masking a chatty build log, written a short line at a time, into a log file,
+ * with and without {@link CoalescingOutputStream}.
+ * As in {@link MaskingBenchmark}, the {@code bytes} counter is in MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class CoalescingBenchmark {
+
+    private static final int CORPUS_SIZE = 1 << 20;
+
+    /** {@link CoalescingOutputStream#SIZE}; zero is the behavior without coalescing. */
+    @Param({"0", "8192", "65536"})
+    public int coalesce;
+
+    @Param({"40", "200"})
+    public int lineLength;
+
+    private List<byte[]> lines;
+    private BindingStep.Filter filter;
+    private File log;
+
+    @Setup(Level.Trial) public void setUp() throws IOException {
+        CoalescingOutputStream.SIZE = coalesce;
+        Random random = new Random(lineLength);
+        List<String> secrets = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            secrets.add("s3cr3t-" + random.nextInt());
+        }
+        lines = new ArrayList<>();
+        int size = 0;
+        while (size < CORPUS_SIZE) {
+            StringBuilder line = new StringBuilder();
+            while (line.length() < lineLength) {
+                line.append(random.nextInt(50) == 0 ? secrets.get(random.nextInt(secrets.size())) : Integer.toString(random.nextInt(), 36)).append(' ');
+            }
+            line.setLength(lineLength);
+            line.append('\n');
+            byte[] b = line.toString().getBytes(StandardCharsets.UTF_8);
+            lines.add(b);
+            size += b.length;
+        }
+        filter = new BindingStep.Filter(secrets, "UTF-8");
+        log = File.createTempFile("coalescing", ".log");
+    }
+
+    @TearDown(Level.Trial) public void tearDown() {
+        CoalescingOutputStream.SIZE = 0;
+        log.delete();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        /** Log bytes masked. */
+        public long bytes;
+    }
+
+    @Benchmark public void mask(Counters counters) throws IOException, InterruptedException {
+        try (OutputStream out = filter.decorateLogger(null, new FileOutputStream(log))) {
+            for (byte[] line : lines) {
+                out.write(line);
+                counters.bytes += line.length;
+            }
+        }
+    }
+
+}
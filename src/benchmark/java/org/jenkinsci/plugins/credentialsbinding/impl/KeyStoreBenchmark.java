@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import com.cloudbees.plugins.credentials.common.StandardCertificateCredentials;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time {@link CertificateMultiBinding} spends producing the key store file of a bind:
+ * serializing it afresh ({@code cold}, as every bind used to) versus reusing an earlier result ({@code warm}).
+ * Uses the key store from the tests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class KeyStoreBenchmark {
+
+    private static final String PASSWORD = "android";
+
+    @Param({"cold", "warm"})
+    public String cache;
+
+    private StandardCertificateCredentials credentials;
+
+    @Setup(Level.Trial) public void setUp() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = KeyStoreBenchmark.class.getResourceAsStream("certificate.p12")) {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        // Avoids CertificateCredentialsImpl, which needs a running Jenkins.
+        credentials = (StandardCertificateCredentials) Proxy.newProxyInstance(KeyStoreBenchmark.class.getClassLoader(),
+                new Class<?>[] {StandardCertificateCredentials.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getKeyStore":
+                        return keyStore;
+                    case "getId":
+                    case "toString":
+                        return "cert";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    @Benchmark public byte[] keyStoreBytes() throws IOException {
+        if (cache.equals("warm")) {
+            return CertificateMultiBinding.keyStoreBytes(credentials, PASSWORD);
+        } else {
+            return CertificateMultiBinding.serializeKeyStore(credentials, PASSWORD);
+        }
+    }
+
+}
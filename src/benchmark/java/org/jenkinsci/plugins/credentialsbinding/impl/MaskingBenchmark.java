@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of console log masking.
+ * Each invocation pushes a synthetic build log of about 1 MiB through a freshly decorated logger, in chunks the size
+ * a remoting pipe would deliver.
+ * The {@code bytes} counter is reported per microsecond, which is to say in MB/s; run with {@code -prof gc}
+ * (as the {@code jmh} profile does) for allocation rates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class MaskingBenchmark {
+
+    private static final int CORPUS_SIZE = 1 << 20;
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final String[] WORDS = {
+        "[INFO]", "Downloading", "from", "central:", "https://repo.maven.apache.org/maven2/org/jenkins-ci/main/jenkins-core/2.150.1/jenkins-core-2.150.1.pom",
+        "+", "curl", "-sSf", "-H", "'Accept: application/json'", "BUILD", "SUCCESS", "Tests", "run:", "42,", "Failures:", "0,",
+        "/home/jenkins/workspace/folder/job@tmp/durable-5f2c/script.sh", "at", "org.apache.maven.cli.MavenCli.main(MavenCli.java:199)",
+        "[Pipeline]", "sh", "echo", "Überprüfung", "abgeschlossen", "ビルド完了", "2019-06-01T12:34:56.789Z", "WARNING:", "deprecated",
+    };
+
+    /** Which filter produces the stream. */
+    @Param({"withCredentials", "wrapper"})
+    public String filter;
+
+    @Param({"1", "10", "100", "500"})
+    public int secretCount;
+
+    @Param({"8", "32"})
+    public int secretLength;
+
+    @Param({"80", "2000"})
+    public int lineLength;
+
+    @Param({"UTF-8", "ISO-8859-1", "Shift_JIS"})
+    public String charset;
+
+    /** Fraction of lines containing a secret. */
+    @Param({"0", "0.1"})
+    public double matchDensity;
+
+    private List<String> secrets;
+    private byte[] corpus;
+    private BindingStep.Filter bindingStepFilter;
+    private SecretBuildWrapper.BuildSecrets buildSecrets;
+
+    @Setup(Level.Trial) public void setUp() throws IOException {
+        Random random = new Random(secretCount * 31 + secretLength);
+        secrets = new ArrayList<>();
+        for (int i = 0; i < secretCount; i++) {
+            StringBuilder b = new StringBuilder();
+            for (int j = 0; j < secretLength; j++) {
+                b.append("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789$%&/+=".charAt(random.nextInt(68)));
+            }
+            secrets.add(b.toString());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(CORPUS_SIZE + lineLength * 4);
+        while (out.size() < CORPUS_SIZE) {
+            StringBuilder line = new StringBuilder();
+            boolean secretPlaced = random.nextDouble() >= matchDensity;
+            while (line.length() < lineLength) {
+                if (!secretPlaced && random.nextInt(4) == 0) {
+                    line.append(secrets.get(random.nextInt(secrets.size())));
+                    secretPlaced = true;
+                } else {
+                    line.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                line.append(' ');
+            }
+            line.setLength(lineLength);
+            line.append('\n');
+            out.write(line.toString().getBytes(charset));
+        }
+        corpus = out.toByteArray();
+        bindingStepFilter = new BindingStep.Filter(secrets, charset);
+        buildSecrets = new SecretBuildWrapper.BuildSecrets(secrets);
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        /** Log bytes masked. */
+        public long bytes;
+    }
+
+    private OutputStream decorate(OutputStream sink) throws IOException, InterruptedException {
+        if (filter.equals("withCredentials")) {
+            return bindingStepFilter.decorateLogger(null, sink);
+        } else {
+            // SecretBuildWrapper.Filter needs a live AbstractBuild to look up its secrets; this is the stream it creates.
+            final Charset cs = Charset.forName(charset);
+            return new MaskingOutputStream(sink, cs, () -> buildSecrets.getMatcher(cs));
+        }
+    }
+
+    @Benchmark public long mask(Counters counters) throws IOException, InterruptedException {
+        Sink sink = new Sink();
+        try (OutputStream out = decorate(sink)) {
+            for (int off = 0; off < corpus.length; off += CHUNK_SIZE) {
+                out.write(corpus, off, Math.min(CHUNK_SIZE, corpus.length - off));
+            }
+        }
+        counters.bytes += corpus.length;
+        return sink.count;
+    }
+
+    /** Discards output, but not so that the JIT can tell. */
+    private static final class Sink extends OutputStream {
+        long count;
+        @Override public void write(int b) {
+            count += b;
+        }
+        @Override public void write(byte[] b, int off, int len) {
+            count += len + (len > 0 ? b[off] : 0);
+        }
+    }
+
+}
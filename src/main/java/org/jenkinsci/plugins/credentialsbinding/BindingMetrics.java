@@ -0,0 +1,208 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Run;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Receives timings of credentials bindings, for example to publish them to a monitoring system,
+ * so that slow credentials stores can be told apart from slow agents.
+ * Called synchronously, possibly from several threads at once, so implementations should be quick.
+ */
+public abstract class BindingMetrics implements ExtensionPoint {
+
+    private static final Logger LOGGER = Logger.getLogger(BindingMetrics.class.getName());
+
+    /**
+     * Called after a binding has been made, or has failed.
+     * Files it wrote may be counted later by {@link #onShared} instead, if they were written together with those of other bindings.
+     */
+    public void onBind(@Nonnull Run<?,?> build, @Nonnull MultiBinding<?> binding, @Nonnull Sample sample) {}
+
+    /**
+     * Called after work done for several bindings at once,
+     * such as looking up all of their credentials concurrently, or writing all of their files in one call to the agent.
+     */
+    public void onShared(@Nonnull Run<?,?> build, @Nonnull Sample sample) {}
+
+    /**
+     * Called after the bindings of a block or build have been undone.
+     */
+    public void onUnbind(@Nonnull Run<?,?> build, @Nonnull Sample sample) {}
+
+    public static ExtensionList<BindingMetrics> all() {
+        return ExtensionList.lookup(BindingMetrics.class);
+    }
+
+    @Restricted(NoExternalUse.class)
+    public static void fireBind(@Nonnull Run<?,?> build, @Nonnull MultiBinding<?> binding, @Nonnull Sample sample) {
+        for (BindingMetrics metrics : all()) {
+            try {
+                metrics.onBind(build, binding, sample);
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.WARNING, null, x);
+            }
+        }
+    }
+
+    @Restricted(NoExternalUse.class)
+    public static void fireShared(@Nonnull Run<?,?> build, @Nonnull Sample sample) {
+        for (BindingMetrics metrics : all()) {
+            try {
+                metrics.onShared(build, sample);
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.WARNING, null, x);
+            }
+        }
+    }
+
+    @Restricted(NoExternalUse.class)
+    public static void fireUnbind(@Nonnull Run<?,?> build, @Nonnull Sample sample) {
+        for (BindingMetrics metrics : all()) {
+            try {
+                metrics.onUnbind(build, sample);
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.WARNING, null, x);
+            }
+        }
+    }
+
+    /**
+     * Time spent on some work, in nanoseconds, and what it consisted of.
+     * Lookups and agent I/O performed by the current thread while a sample is {@linkplain #start started} are attributed to it.
+     */
+    public static final class Sample {
+
+        private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<>();
+
+        private long start;
+        private Sample previous;
+        private long nanos;
+        private long lookupNanos;
+        private long ioNanos;
+        private long bytesWritten;
+
+        /** Total elapsed time. */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /** Time spent looking up credentials. */
+        public long getLookupNanos() {
+            return lookupNanos;
+        }
+
+        /** Time spent in calls to the agent creating secret files. */
+        public long getIoNanos() {
+            return ioNanos;
+        }
+
+        /** Size of secret files sent to the agent. */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /** A sample with no time spent, to {@linkplain #add add} others to. */
+        @Restricted(NoExternalUse.class)
+        public Sample() {}
+
+        /** Starts timing work on this thread. */
+        @Restricted(NoExternalUse.class)
+        public static Sample start() {
+            Sample sample = new Sample();
+            sample.previous = CURRENT.get();
+            CURRENT.set(sample);
+            sample.start = System.nanoTime();
+            return sample;
+        }
+
+        /** When {@link #start} was called, per {@link System#nanoTime}. */
+        @Restricted(NoExternalUse.class)
+        public long getStart() {
+            return start;
+        }
+
+        /** Stops timing; must be called on the same thread as {@link #start}. */
+        @Restricted(NoExternalUse.class)
+        public Sample stop() {
+            nanos = System.nanoTime() - start;
+            if (previous != null) {
+                CURRENT.set(previous);
+                previous = null;
+            } else {
+                CURRENT.remove();
+            }
+            return this;
+        }
+
+        @Restricted(NoExternalUse.class)
+        public void add(@Nonnull Sample other) {
+            nanos += other.nanos;
+            lookupNanos += other.lookupNanos;
+            ioNanos += other.ioNanos;
+            bytesWritten += other.bytesWritten;
+        }
+
+        /** Records a credentials lookup taking some time, if a sample was started on this thread. */
+        @Restricted(NoExternalUse.class)
+        public static void lookup(long nanos) {
+            Sample sample = CURRENT.get();
+            if (sample != null) {
+                sample.lookupNanos += nanos;
+            }
+        }
+
+        /** Records a call to the agent taking some time and sending some bytes, if a sample was started on this thread. */
+        @Restricted(NoExternalUse.class)
+        public static void io(long nanos, long bytes) {
+            Sample sample = CURRENT.get();
+            if (sample != null) {
+                sample.ioNanos += nanos;
+                sample.bytesWritten += bytes;
+            }
+        }
+
+        @Override public String toString() {
+            StringBuilder b = new StringBuilder().append(millis(nanos)).append(" ms");
+            if (lookupNanos > 0 || ioNanos > 0) {
+                b.append(" (").append(millis(lookupNanos)).append(" ms looking up credentials, ")
+                        .append(millis(ioNanos)).append(" ms writing ").append(bytesWritten).append(" bytes to the agent)");
+            }
+            return b.toString();
+        }
+
+        private static long millis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+    }
+
+}
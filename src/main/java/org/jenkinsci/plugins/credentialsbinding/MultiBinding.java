@@ -24,7 +24,6 @@
 
 package org.jenkinsci.plugins.credentialsbinding;
 
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.IdCredentials;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import hudson.ExtensionPoint;
@@ -51,6 +50,7 @@ import javax.annotation.Nullable;
 
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.credentialsbinding.impl.CredentialNotFoundException;
+import org.jenkinsci.plugins.credentialsbinding.impl.CredentialsCache;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -143,17 +143,21 @@ public abstract class MultiBinding<C extends StandardCredentials> extends Abstra
 
     /**
      * Looks up the actual credentials.
+     * Lookups are reused for a short while within a given build, and the build is recorded as using the credentials
+     * only once.
      * @param build the build.
      * @return the credentials
      * @throws FileNotFoundException if the credentials could not be found (for convenience, rather than returning null)
      */
     protected final @Nonnull C getCredentials(@Nonnull Run<?,?> build) throws IOException {
-        IdCredentials cred = CredentialsProvider.findCredentialById(credentialsId, IdCredentials.class, build);
+        long start = System.nanoTime();
+        IdCredentials cred = CredentialsCache.findCredentialById(credentialsId, IdCredentials.class, build);
+        BindingMetrics.Sample.lookup(System.nanoTime() - start);
         if (cred==null)
             throw new CredentialNotFoundException("Could not find credentials entry with ID '" + credentialsId + "'");
 
         if (type().isInstance(cred)) {
-            CredentialsProvider.track(build, cred);
+            CredentialsCache.track(build, cred);
             return type().cast(cred);
         }
 
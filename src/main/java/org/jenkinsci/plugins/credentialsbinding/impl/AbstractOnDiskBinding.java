@@ -1,7 +1,9 @@
 package org.jenkinsci.plugins.credentialsbinding.impl;
 
 import java.io.IOException;
+import java.util.Collections;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.jenkinsci.plugins.credentialsbinding.Binding;
@@ -35,11 +37,32 @@ public abstract class AbstractOnDiskBinding<C extends StandardCredentials> exten
         if (workspace == null) {
             throw new IllegalArgumentException("This Binding implementation requires a non-null workspace");
         }
-        final UnbindableDir dir = UnbindableDir.create(workspace);
-        final FilePath secret = write(getCredentials(build), dir.getDirPath());
+        final C credentials = getCredentials(build);
+        final UnbindableDir.Entry entry = entry(credentials);
+        final UnbindableDir dir;
+        final FilePath secret;
+        if (entry != null) {
+            dir = UnbindableDir.create(workspace, Collections.singletonList(entry));
+            secret = dir.getDirPath().child(entry.getName());
+        } else {
+            dir = UnbindableDir.create(workspace);
+            secret = write(credentials, dir.getDirPath());
+        }
         return new SingleEnvironment(secret.getRemote(), dir.getUnbinder());
     }
 
+    /**
+     * Describes what {@link #write} would write, so that it can be written along with the temporary directory, in a
+     * single call to the agent.
+     * @param credentials the credentials to bind
+     * @return what to write into the temporary directory (its path will be bound to the variable),
+     *         or null to create the directory first and then call {@link #write}
+     * @throws IOException
+     */
+    protected @CheckForNull UnbindableDir.Entry entry(C credentials) throws IOException {
+        return null;
+    }
+
     /**
      * Writes credentials under a given temporary directory, and returns their path (will be bound to the variable).
      * @param credentials the credentials to bind
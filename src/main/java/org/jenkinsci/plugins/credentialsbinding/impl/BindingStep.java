@@ -24,20 +24,25 @@
 
 package org.jenkinsci.plugins.credentialsbinding.impl;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Functions;
 import hudson.Launcher;
 import hudson.console.ConsoleLogFilter;
-import hudson.console.LineTransformationOutputStream;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import hudson.util.Secret;
 import java.io.IOException;
 import java.io.ObjectStreamException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -45,14 +50,25 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import jenkins.util.SystemProperties;
 
 import org.apache.commons.codec.Charsets;
+import org.jenkinsci.plugins.credentialsbinding.BindingMetrics;
 import org.jenkinsci.plugins.credentialsbinding.MultiBinding;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
@@ -65,7 +81,9 @@ import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
@@ -74,7 +92,14 @@ import javax.annotation.Nonnull;
 @SuppressWarnings("rawtypes") // TODO DescribableHelper does not yet seem to handle List<? extends MultiBinding<?>> or even List<MultiBinding<?>>
 public final class BindingStep extends Step {
 
+    private static final Logger LOGGER = Logger.getLogger(BindingStep.class.getName());
+
+    /** Whether to print how long binding and unbinding took to the build log; see {@link BindingMetrics} for details. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static boolean LOG_METRICS = SystemProperties.getBoolean(BindingStep.class.getName() + ".LOG_METRICS");
+
     private final List<MultiBinding> bindings;
+    private boolean failLazily;
 
     @DataBoundConstructor public BindingStep(List<MultiBinding> bindings) {
         this.bindings = bindings;
@@ -84,6 +109,19 @@ public final class BindingStep extends Step {
         return bindings;
     }
 
+    public boolean isFailLazily() {
+        return failLazily;
+    }
+
+    /**
+     * Whether a failure to bind credentials is left to the steps inside the block needing the environment,
+     * rather than failing the block before it starts, so that a block whose steps never need them still runs.
+     * The bindings are made before the block starts either way.
+     */
+    @DataBoundSetter public void setFailLazily(boolean failLazily) {
+        this.failLazily = failLazily;
+    }
+
     @Override
     public StepExecution start(StepContext context) throws Exception {
         return new Execution2(this, context);
@@ -124,27 +162,37 @@ public final class BindingStep extends Step {
             FilePath workspace = getContext().get(FilePath.class);
             Launcher launcher = getContext().get(Launcher.class);
 
-            Map<String,String> overrides = new LinkedHashMap<>();
-            List<MultiBinding.Unbinder> unbinders = new ArrayList<>();
             for (MultiBinding<?> binding : step.bindings) {
                 if (binding.getDescriptor().requiresWorkspace() &&
                         (workspace == null || launcher == null)) {
                     throw new MissingContextVariableException(FilePath.class);
                 }
-                MultiBinding.MultiEnvironment environment = binding.bind(run, workspace, launcher, listener);
-                unbinders.add(environment.getUnbinder());
-                overrides.putAll(environment.getValues());
             }
-            if (!overrides.isEmpty()) {
-                boolean unix = launcher != null ? launcher.isUnix() : true;
-                listener.getLogger().println("Masking only exact matches of " + overrides.keySet().stream().map(
-                    v -> unix ? "$" + v : "%" + v + "%"
-                ).collect(Collectors.joining(" or ")));
+
+            Map<String,String> overrides = new LinkedHashMap<>();
+            List<MultiBinding.Unbinder> unbinders = new ArrayList<>();
+            String failure = null;
+            try {
+                bindAll(step.bindings, run, workspace, launcher, listener, overrides, unbinders);
+            } catch (IOException x) {
+                if (!step.failLazily) {
+                    throw x;
+                }
+                // Whatever was bound is still unbound at the end of the block.
+                if (x instanceof AbortException) {
+                    failure = x.getMessage();
+                } else {
+                    Functions.printStackTrace(x, listener.getLogger());
+                    failure = x.toString();
+                }
             }
+            printMasking(overrides.keySet(), launcher, listener);
+            ConsoleLogFilter original = getContext().get(ConsoleLogFilter.class);
+            Filter filter = Filter.forBlock(original, overrides.values(), run.getCharset().name());
             getContext().newBodyInvoker().
-                    withContext(EnvironmentExpander.merge(getContext().get(EnvironmentExpander.class), new Overrider(overrides))).
-                    withContext(BodyInvoker.mergeConsoleLogFilters(getContext().get(ConsoleLogFilter.class), new Filter(overrides.values(), run.getCharset().name()))).
-                    withCallback(new Callback2(unbinders)).
+                    withContext(EnvironmentExpander.merge(getContext().get(EnvironmentExpander.class), new Overrider(overrides, failure))).
+                    withContext(filter.in(original)).
+                    withCallback(new Callback2(unbinders, filter)).
                     start();
         }
 
@@ -153,12 +201,18 @@ public final class BindingStep extends Step {
             private static final long serialVersionUID = 1;
 
             private final List<MultiBinding.Unbinder> unbinders;
+            /** Null if started by an older version. */
+            private final @CheckForNull Filter filter;
 
-            Callback2(List<MultiBinding.Unbinder> unbinders) {
+            Callback2(List<MultiBinding.Unbinder> unbinders, Filter filter) {
                 this.unbinders = unbinders;
+                this.filter = filter;
             }
 
             @Override protected void finished(StepContext context) throws Exception {
+                if (filter != null) {
+                    filter.flush();
+                }
                 new Callback(unbinders).finished(context);
             }
 
@@ -166,76 +220,278 @@ public final class BindingStep extends Step {
 
     }
 
+    /**
+     * Binds credentials for a block.
+     * Called from the background thread of the step, never from the CPS VM thread, since it may look up credentials
+     * and write to the agent.
+     * @param overrides receives the values of variables
+     * @param unbinders receives an unbinder for each binding made, even if a later one fails
+     */
+    private static void bindAll(List<MultiBinding> bindings, Run<?,?> run, @CheckForNull FilePath workspace, @CheckForNull Launcher launcher, TaskListener listener,
+            Map<String,String> overrides, List<MultiBinding.Unbinder> unbinders) throws IOException, InterruptedException {
+        BindingMetrics.Sample total = new BindingMetrics.Sample();
+        // Look up all the credentials at once, rather than one at a time as each binding needs them.
+        Set<String> credentialsIds = new LinkedHashSet<>();
+        for (MultiBinding<?> binding : bindings) {
+            if (binding.getCredentialsId() != null) {
+                credentialsIds.add(binding.getCredentialsId());
+            }
+        }
+        BindingMetrics.Sample prefetch = BindingMetrics.Sample.start();
+        try {
+            CredentialsCache.prefetch(run, credentialsIds);
+        } finally {
+            // The lookups run on other threads, so count the wait for them.
+            BindingMetrics.Sample.lookup(System.nanoTime() - prefetch.getStart());
+            prefetch.stop();
+        }
+        BindingMetrics.Sample shared = new BindingMetrics.Sample();
+        shared.add(prefetch);
+
+        // Secret files of all bindings go into one directory, created in one go.
+        try (UnbindableDir.Batch batch = workspace != null ? UnbindableDir.Batch.start(workspace) : null) {
+            for (MultiBinding<?> binding : bindings) {
+                BindingMetrics.Sample sample = BindingMetrics.Sample.start();
+                MultiBinding.MultiEnvironment environment;
+                try {
+                    environment = binding.bind(run, workspace, launcher, listener);
+                } finally {
+                    BindingMetrics.fireBind(run, binding, sample.stop());
+                    total.add(sample);
+                }
+                unbinders.add(environment.getUnbinder());
+                overrides.putAll(environment.getValues());
+            }
+            if (batch != null) {
+                BindingMetrics.Sample flush = BindingMetrics.Sample.start();
+                try {
+                    batch.flush();
+                } finally {
+                    shared.add(flush.stop());
+                }
+                MultiBinding.Unbinder unbinder = batch.getUnbinder();
+                if (unbinder != null) {
+                    unbinders.add(unbinder);
+                }
+            }
+        } finally {
+            BindingMetrics.fireShared(run, shared);
+            total.add(shared);
+            if (LOG_METRICS) {
+                listener.getLogger().println("Bound credentials in " + total);
+            }
+        }
+    }
+
+    private static void printMasking(Collection<String> variables, @CheckForNull Launcher launcher, TaskListener listener) {
+        if (!variables.isEmpty()) {
+            boolean unix = launcher != null ? launcher.isUnix() : true;
+            listener.getLogger().println("Masking only exact matches of " + variables.stream().map(
+                v -> unix ? "$" + v : "%" + v + "%"
+            ).collect(Collectors.joining(" or ")));
+        }
+    }
+
     private static final class Overrider extends EnvironmentExpander {
 
         private static final long serialVersionUID = 1;
 
         private final Map<String,Secret> overrides = new HashMap<String,Secret>();
 
-        Overrider(Map<String,String> overrides) {
+        /** Why a block {@linkplain BindingStep#setFailLazily failing lazily} could not bind all its credentials, if so. */
+        private final @CheckForNull String failure;
+
+        /** Decrypted {@link #overrides}, so that steps in the block do not each pay for decryption; rebuilt after a restart. */
+        private transient volatile Map<String,String> plainText;
+
+        Overrider(Map<String,String> overrides, @CheckForNull String failure) {
             for (Map.Entry<String,String> override : overrides.entrySet()) {
                 this.overrides.put(override.getKey(), Secret.fromString(override.getValue()));
             }
+            this.failure = failure;
+            plainText = new HashMap<String,String>(overrides);
         }
 
         @Override public void expand(EnvVars env) throws IOException, InterruptedException {
-            for (Map.Entry<String,Secret> override : overrides.entrySet()) {
-                env.override(override.getKey(), override.getValue().getPlainText());
+            if (failure != null) {
+                throw new AbortException(failure);
+            }
+            Map<String,String> _plainText = plainText;
+            if (_plainText == null) {
+                _plainText = new HashMap<String,String>();
+                for (Map.Entry<String,Secret> override : overrides.entrySet()) {
+                    _plainText.put(override.getKey(), override.getValue().getPlainText());
+                }
+                plainText = _plainText;
+            }
+            for (Map.Entry<String,String> override : _plainText.entrySet()) {
+                env.override(override.getKey(), override.getValue());
             }
         }
 
     }
 
-    /** Similar to {@code MaskPasswordsOutputStream}. */
-    private static final class Filter extends ConsoleLogFilter implements Serializable {
+    /**
+     * Similar to {@code MaskPasswordsOutputStream}.
+     * Besides being saved with the build, this may be sent to an agent along with the listener of a step,
+     * so that output of a durable task is masked there before being streamed back (see {@code TaskListenerDecorator});
+     * otherwise it is applied on the controller as output arrives.
+     * So it holds only the secrets to mask, which are known before the block starts, and no state of the step.
+     */
+    static final class Filter extends ConsoleLogFilter implements Serializable {
 
         private static final long serialVersionUID = 1;
 
-        private final Secret pattern;
+        /** Only set when deserialized from an older version; see {@link MultiBinding#getPatternStringForSecrets}. */
+        private Secret pattern;
+        private List<Secret> secrets;
         private String charsetName;
+        /** Compiled from {@link #secrets} on first use, and shared by every stream this filter decorates. */
+        private transient volatile SecretMatcher matcher;
+        /** Streams decorated here which {@linkplain MaskingOutputStream#holdsBack hold back output}, to {@link #flush} at the end of the block. */
+        private transient Set<OutputStream> holdingBack;
         
         Filter(Collection<String> secrets, String charsetName) {
-            pattern = Secret.fromString(MultiBinding.getPatternStringForSecrets(secrets));
+            this.secrets = new ArrayList<>();
+            for (String secret : secrets) {
+                this.secrets.add(Secret.fromString(secret));
+            }
             this.charsetName = charsetName;
         }
+
+        /**
+         * Creates the filter for a block.
+         * If the filter of an enclosing block is in effect, replaces it with one masking the secrets of both,
+         * so that each line is scanned once however deeply blocks are nested.
+         * @param original the filter in effect outside the block, if any
+         * @see #in
+         */
+        static Filter forBlock(@CheckForNull ConsoleLogFilter original, Collection<String> secrets, String charsetName) {
+            Filter filter = new Filter(secrets, charsetName);
+            if (filter.replaces(original)) {
+                filter.secrets.addAll(0, ((Filter) original).secrets);
+            }
+            return filter;
+        }
+
+        private boolean replaces(@CheckForNull ConsoleLogFilter original) {
+            return original instanceof Filter && ((Filter) original).charsetName.equals(charsetName);
+        }
+
+        /**
+         * The filter to put in the context of a block created by {@link #forBlock}.
+         * @param original as passed to {@link #forBlock}
+         */
+        ConsoleLogFilter in(@CheckForNull ConsoleLogFilter original) {
+            return replaces(original) ? this : BodyInvoker.mergeConsoleLogFilters(original, this);
+        }
         
         // To avoid de-serialization issues with newly added field (charsetName)
         private Object readResolve() throws ObjectStreamException {
             if (this.charsetName == null) {
                 this.charsetName = Charsets.UTF_8.name();
             }
+            if (secrets == null) {
+                secrets = new ArrayList<>();
+                for (String secret : unquote(pattern.getPlainText())) {
+                    secrets.add(Secret.fromString(secret));
+                }
+                pattern = null;
+            }
             return this;
         }
 
+        /** Inverse of {@link MultiBinding#getPatternStringForSecrets}. */
+        private static List<String> unquote(String pattern) {
+            List<String> secrets = new ArrayList<>();
+            StringBuilder secret = new StringBuilder();
+            int i = 0;
+            while (pattern.startsWith("\\Q", i)) {
+                int end = pattern.indexOf("\\E", i + 2);
+                if (end == -1) {
+                    break;
+                }
+                secret.append(pattern, i + 2, end);
+                i = end + 2;
+                if (pattern.startsWith("\\\\E", i)) { // Pattern.quote escapes a literal \E as \E\\E\Q
+                    secret.append("\\E");
+                    i += 3;
+                    continue;
+                }
+                secrets.add(secret.toString());
+                secret.setLength(0);
+                if (i < pattern.length() && pattern.charAt(i) == '|') {
+                    i++;
+                }
+            }
+            return secrets;
+        }
+
+        private SecretMatcher getMatcher() {
+            SecretMatcher m = matcher;
+            if (m == null) {
+                // Compiling twice in a race is harmless; the results are equivalent.
+                List<String> plainSecrets = new ArrayList<>();
+                for (Secret secret : secrets) {
+                    plainSecrets.add(secret.getPlainText());
+                }
+                m = SecretMatcher.compile(plainSecrets, Charset.forName(charsetName));
+                matcher = m;
+            }
+            return m;
+        }
+
         @Override public OutputStream decorateLogger(AbstractBuild _ignore, final OutputStream logger) throws IOException, InterruptedException {
-            final Pattern p = Pattern.compile(pattern.getPlainText());
-            return new LineTransformationOutputStream() {
-                @Override protected void eol(byte[] b, int len) throws IOException {
-                    if (!p.toString().isEmpty()) {
-                        Matcher m = p.matcher(new String(b, 0, len, charsetName));
-                        if (m.find()) {
-                            logger.write(m.replaceAll("****").getBytes(charsetName));
-                        } else {
-                            // Avoid byte → char → byte conversion unless we are actually doing something.
-                            logger.write(b, 0, len);
-                        }
-                    } else {
-                        // Avoid byte → char → byte conversion unless we are actually doing something.
-                        logger.write(b, 0, len);
+            final SecretMatcher m = getMatcher();
+            if (m.isEmpty()) {
+                return logger; // nothing to mask, so no need to even split lines
+            }
+            OutputStream out = MaskingOutputStream.of(logger, Charset.forName(charsetName), () -> m);
+            if (MaskingOutputStream.holdsBack(out)) {
+                synchronized (this) {
+                    if (holdingBack == null) {
+                        holdingBack = Collections.newSetFromMap(new WeakHashMap<>());
                     }
+                    holdingBack.add(out);
                 }
-                @Override public void flush() throws IOException {
-                    logger.flush();
+            }
+            return out;
+        }
+
+        /**
+         * Passes along output still held back by streams this filter decorated, so that it shows before the end of the block.
+         * Only reaches streams decorated in this JVM, which is where the block ends unless masking runs on an agent,
+         * in which case the output is passed along when the durable task closes its stream.
+         */
+        void flush() {
+            List<OutputStream> streams;
+            synchronized (this) {
+                if (holdingBack == null) {
+                    return;
                 }
-                @Override public void close() throws IOException {
-                    super.close();
-                    logger.close();
+                streams = new ArrayList<>(holdingBack);
+            }
+            for (OutputStream out : streams) {
+                try {
+                    out.flush();
+                } catch (IOException x) {
+                    // the writer is told as well
+                    LOGGER.log(Level.FINE, null, x);
                 }
-            };
+            }
         }
 
     }
 
+    /** Deletes the temporary directories of blocks while their other unbinders run; threads time out when idle. */
+    private static final ExecutorService unbinding;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(10, 10, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "withCredentials unbinding"));
+        executor.allowCoreThreadTimeOut(true);
+        unbinding = executor;
+    }
+
     private static final class Callback extends BodyExecutionCallback.TailCall {
 
         private static final long serialVersionUID = 1;
@@ -247,24 +503,83 @@ public final class BindingStep extends Step {
         }
 
         @Override protected void finished(StepContext context) throws Exception {
-            Exception xx = null;
-
-            for (MultiBinding.Unbinder unbinder : unbinders) {
-                try {
-                    unbinder.unbind(context.get(Run.class), context.get(FilePath.class), context.get(Launcher.class), context.get(TaskListener.class));
-                } catch (Exception x) {
-                    if (xx == null) {
-                        xx = x;
-                    } else {
-                        xx.addSuppressed(x);
-                    }
+            Run<?,?> run = context.get(Run.class);
+            TaskListener listener = context.get(TaskListener.class);
+            BindingMetrics.Sample sample = BindingMetrics.Sample.start();
+            try {
+                unbindAll(unbinders, run, context.get(FilePath.class), context.get(Launcher.class), listener);
+            } finally {
+                BindingMetrics.fireUnbind(run, sample.stop());
+                if (LOG_METRICS) {
+                    listener.getLogger().println("Unbound credentials in " + sample);
                 }
             }
-            if (xx != null) {
-                throw xx;
+        }
+
+    }
+
+    /**
+     * Runs unbinders as if one by one, except that temporary directories are deleted together in one call to the agent,
+     * in place of the first of them, and alongside the others.
+     * Other unbinders, which may come from other plugins and rely on their order, are run in order on this thread.
+     * As when running them one by one, the first failure in the order given is thrown once all are done,
+     * with any later failures suppressed.
+     */
+    static void unbindAll(List<MultiBinding.Unbinder> unbinders, final Run<?,?> run, @CheckForNull final FilePath workspace, @CheckForNull final Launcher launcher, final TaskListener listener) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int dirsTask = -1;
+        final List<UnbindableDir.UnbinderImpl> dirs = new ArrayList<>();
+        for (final MultiBinding.Unbinder unbinder : unbinders) {
+            if (workspace != null && unbinder.getClass() == UnbindableDir.UnbinderImpl.class) {
+                if (dirs.isEmpty()) {
+                    dirsTask = tasks.size();
+                    tasks.add(() -> {
+                        UnbindableDir.unbindAll(workspace, dirs);
+                        return null;
+                    });
+                }
+                dirs.add((UnbindableDir.UnbinderImpl) unbinder);
+            } else {
+                tasks.add(() -> {
+                    unbinder.unbind(run, workspace, launcher, listener);
+                    return null;
+                });
             }
         }
 
+        Future<Void> dirsDeleted = dirsTask != -1 && tasks.size() > 1 ? unbinding.submit(tasks.get(dirsTask)) : null;
+        Exception[] failures = new Exception[tasks.size()];
+        for (int i = 0; i < tasks.size(); i++) {
+            if (dirsDeleted != null && i == dirsTask) {
+                continue;
+            }
+            try {
+                tasks.get(i).call();
+            } catch (Exception x) {
+                failures[i] = x;
+            }
+        }
+        if (dirsDeleted != null) {
+            try {
+                dirsDeleted.get();
+            } catch (ExecutionException e) {
+                failures[dirsTask] = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        Exception xx = null;
+        for (Exception x : failures) {
+            if (x == null) {
+                continue;
+            }
+            if (xx == null) {
+                xx = x;
+            } else {
+                xx.addSuppressed(x);
+            }
+        }
+        if (xx != null) {
+            throw xx;
+        }
     }
 
     @Extension public static final class DescriptorImpl extends StepDescriptor {
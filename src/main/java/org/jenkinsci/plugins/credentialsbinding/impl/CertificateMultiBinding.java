@@ -1,13 +1,15 @@
 package org.jenkinsci.plugins.credentialsbinding.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -19,6 +21,8 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
 import com.cloudbees.plugins.credentials.common.StandardCertificateCredentials;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 
 import hudson.Extension;
@@ -82,21 +86,10 @@ public class CertificateMultiBinding extends MultiBinding<StandardCertificateCre
 			m.put(passwordVariable, storePassword);
 
 		if (workspace != null) {
-			final UnbindableDir secrets = UnbindableDir.create(workspace);
-			final FilePath secret = secrets.getDirPath().child("keystore-" + keystoreVariable);
-			OutputStream out = secret.write();
-			try {
-				credentials.getKeyStore().store(out, storePassword.toCharArray());
-			} catch (KeyStoreException e) {
-				throw new IOException(e);
-			} catch (NoSuchAlgorithmException e) {
-				throw new IOException(e);
-			} catch (CertificateException e) {
-				throw new IOException(e);
-			} finally {
-				org.apache.commons.io.IOUtils.closeQuietly(out);
-			}
-			secret.chmod(0400);
+			final String secretName = "keystore-" + keystoreVariable;
+			final UnbindableDir secrets = UnbindableDir.create(workspace,
+					Collections.singletonList(UnbindableDir.Entry.file(secretName, keyStoreBytes(credentials, storePassword)).reusable(credentials.getId())));
+			final FilePath secret = secrets.getDirPath().child(secretName);
 			m.put(keystoreVariable, secret.getRemote());
 			return new MultiEnvironment(m, secrets.getUnbinder());
 		} else {
@@ -104,6 +97,42 @@ public class CertificateMultiBinding extends MultiBinding<StandardCertificateCre
 		}
 	}
 
+	/**
+	 * Key stores as written by {@link #bind}, by credentials.
+	 * Credentials are compared by identity: a new version of some credentials is a new object, so it is never
+	 * confused with an older one, which is dropped once no longer used elsewhere.
+	 * The bytes are protected by the store password, just like the files written from them.
+	 */
+	private static final Cache<StandardCertificateCredentials, byte[]> keyStores =
+			CacheBuilder.newBuilder().weakKeys().maximumSize(100).expireAfterAccess(1, TimeUnit.HOURS).build();
+
+	/**
+	 * Serializes the key store of some credentials, or reuses the result of doing so earlier,
+	 * since with strong encryption serializing can be costly.
+	 */
+	static byte[] keyStoreBytes(StandardCertificateCredentials credentials, String storePassword) throws IOException {
+		byte[] bytes = keyStores.getIfPresent(credentials);
+		if (bytes == null) {
+			bytes = serializeKeyStore(credentials, storePassword);
+			keyStores.put(credentials, bytes);
+		}
+		return bytes;
+	}
+
+	static byte[] serializeKeyStore(StandardCertificateCredentials credentials, String storePassword) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			credentials.getKeyStore().store(out, storePassword.toCharArray());
+		} catch (KeyStoreException e) {
+			throw new IOException(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		} catch (CertificateException e) {
+			throw new IOException(e);
+		}
+		return out.toByteArray();
+	}
+
 	@Override
 	public Set<String> variables() {
 		Set<String> set = new HashSet<>();
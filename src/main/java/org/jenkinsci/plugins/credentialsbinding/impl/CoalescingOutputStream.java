@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import jenkins.util.SystemProperties;
+
+/**
+ * Collects small writes into larger ones, since each write to a log file or remoting pipe has a fixed cost.
+ * Output is passed along when the buffer fills, on {@link #flush} or {@link #close},
+ * or at most {@link #DELAY} milliseconds after it was written, so a quiet build still shows its latest output promptly.
+ * Uses its own threads rather than {@link jenkins.util.Timer}, as masking may run on an agent.
+ * Passing output along may block, so it is done without holding up writes that fit in the buffer,
+ * and timed flushes of each stream run on their own thread, so that a stream which blocks delays no other.
+ * If a timed flush fails, the writer is told on its next call.
+ */
+final class CoalescingOutputStream extends OutputStream {
+
+    /** Buffer size in bytes used by {@link MaskingOutputStream}; zero disables coalescing. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static int SIZE = SystemProperties.getInteger(CoalescingOutputStream.class.getName() + ".SIZE", 0);
+
+    /** How long, in milliseconds, output may wait in the buffer. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static long DELAY = SystemProperties.getLong(CoalescingOutputStream.class.getName() + ".DELAY", 100L);
+
+    /** Only hands timed flushes to {@link #flushers}; thread times out when idle. */
+    private static final ScheduledThreadPoolExecutor timer;
+    /**
+     * Runs timed flushes.
+     * Each stream has at most one at a time, so there are no more threads than streams being passed along at once;
+     * threads time out when idle.
+     */
+    private static final ExecutorService flushers;
+    static {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamingThreadFactory(new DaemonThreadFactory(), "withCredentials log flush timer"));
+        executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+        timer = executor;
+        flushers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "withCredentials log flush"));
+    }
+
+    private final OutputStream out;
+    private final long delay;
+    /** Held while writing to {@link #out}, which keeps what is passed along in order. */
+    private final ReentrantLock writing = new ReentrantLock();
+    /** Guarded by this, as are the fields below. */
+    private final byte[] buf;
+    private int count;
+    /** Pending flush of what is in {@link #buf}, if any. */
+    private ScheduledFuture<?> scheduled;
+    private boolean closed;
+    private volatile IOException failure;
+
+    CoalescingOutputStream(OutputStream out, int size, long delay) {
+        this.out = out;
+        this.buf = new byte[size];
+        this.delay = delay;
+    }
+
+    @Override public void write(int b) throws IOException {
+        checkFailure();
+        synchronized (this) {
+            if (count < buf.length) {
+                buf[count++] = (byte) b;
+                schedule();
+                return;
+            }
+        }
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        checkFailure();
+        synchronized (this) {
+            if (len < buf.length - count) {
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+                schedule();
+                return;
+            }
+        }
+        // Does not fit, so pass along what is buffered first.
+        writing.lock();
+        try {
+            while (true) {
+                drain();
+                if (len >= buf.length) {
+                    out.write(b, off, len);
+                    return;
+                }
+                synchronized (this) {
+                    if (len <= buf.length - count) { // unless another thread wrote meanwhile
+                        System.arraycopy(b, off, buf, count, len);
+                        count += len;
+                        schedule();
+                        return;
+                    }
+                }
+            }
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    /** Call while holding this. */
+    private void schedule() {
+        if (scheduled == null && count > 0 && !closed) {
+            scheduled = timer.schedule(() -> flushers.execute(this::timeout), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Call while holding this. */
+    private void cancel() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    private void timeout() {
+        synchronized (this) {
+            scheduled = null;
+            if (closed) {
+                return;
+            }
+        }
+        if (!writing.tryLock()) {
+            // Output is being passed along already, perhaps blocking; try again later rather than wait here.
+            synchronized (this) {
+                schedule();
+            }
+            return;
+        }
+        try {
+            drain();
+            out.flush();
+        } catch (IOException x) {
+            failure = x;
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    /** Passes along what is buffered. Call while holding {@link #writing}. */
+    private void drain() throws IOException {
+        byte[] chunk;
+        synchronized (this) {
+            if (count == 0) {
+                return;
+            }
+            chunk = Arrays.copyOf(buf, count);
+            count = 0;
+        }
+        out.write(chunk);
+    }
+
+    private void checkFailure() throws IOException {
+        IOException x = failure;
+        if (x != null) {
+            throw new IOException(x);
+        }
+    }
+
+    @Override public void flush() throws IOException {
+        checkFailure();
+        writing.lock();
+        try {
+            synchronized (this) {
+                cancel();
+            }
+            drain();
+            out.flush();
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    @Override public void close() throws IOException {
+        writing.lock();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                cancel();
+            }
+            try {
+                drain();
+            } finally {
+                out.close();
+            }
+        } finally {
+            writing.unlock();
+        }
+        checkFailure();
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.IdCredentials;
+import com.google.common.collect.MapMaker;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.User;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.credentialsbinding.MultiBinding;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Remembers credentials looked up by {@link MultiBinding} for the duration of a build,
+ * so that blocks binding the same credentials over and over do not search every provider each time.
+ * A lookup is reused for at most {@link #TTL} milliseconds, and forgotten as soon as anything that may hold credentials
+ * is saved: a credentials provider or store, a user, or an item group such as Jenkins itself or a folder.
+ * Other saves, like those of fingerprints, jobs, or nodes, which are frequent on a busy controller, keep the cache.
+ * Missing credentials are not remembered.
+ * Also records usage of credentials by builds, once per build, in the background; anything pending is recorded when
+ * the build completes.
+ */
+@Restricted(NoExternalUse.class)
+public final class CredentialsCache {
+
+    /** How long, in milliseconds, a lookup is reused. Zero disables the cache. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static long TTL = SystemProperties.getLong(CredentialsCache.class.getName() + ".TTL", TimeUnit.MINUTES.toMillis(1));
+
+    /** How long, in milliseconds, to wait for more credentials to be used before recording usage. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static long TRACK_DELAY = SystemProperties.getLong(CredentialsCache.class.getName() + ".TRACK_DELAY", TimeUnit.SECONDS.toMillis(5));
+
+    private static final Logger LOGGER = Logger.getLogger(CredentialsCache.class.getName());
+
+    /** Runs {@link #prefetch} lookups; threads time out when idle. */
+    private static final ExecutorService lookups;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(8, 8, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "withCredentials lookup"));
+        executor.allowCoreThreadTimeOut(true);
+        lookups = executor;
+    }
+
+    private static final ConcurrentMap<Run<?, ?>, RunCredentials> cache = new MapMaker().weakKeys().makeMap();
+
+    private CredentialsCache() {}
+
+    /**
+     * Like {@link CredentialsProvider#findCredentialById(String, Class, Run, com.cloudbees.plugins.credentials.domains.DomainRequirement...)}
+     * but reuses recent results for the same build.
+     */
+    public static @CheckForNull <C extends IdCredentials> C findCredentialById(@Nonnull String id, @Nonnull Class<C> type, @Nonnull Run<?, ?> run) {
+        if (TTL <= 0) {
+            return CredentialsProvider.findCredentialById(id, type, run);
+        }
+        ConcurrentMap<String, Lookup> lookups = forRun(run).lookups;
+        String key = type.getName() + ':' + id;
+        Lookup lookup = lookups.get(key);
+        long now = System.nanoTime();
+        if (lookup == null || now - lookup.time > TimeUnit.MILLISECONDS.toNanos(TTL)) {
+            C credentials = CredentialsProvider.findCredentialById(id, type, run);
+            if (credentials == null) {
+                lookups.remove(key);
+                return null;
+            }
+            lookup = new Lookup(credentials, now);
+            lookups.put(key, lookup);
+        }
+        return type.cast(lookup.credentials);
+    }
+
+    /**
+     * Like {@link CredentialsProvider#track(Run, com.cloudbees.plugins.credentials.Credentials)}
+     * but does nothing if these credentials were already tracked for this build,
+     * and otherwise does it a little later, along with any other credentials used in the meantime.
+     */
+    public static void track(@Nonnull final Run<?, ?> run, @Nonnull IdCredentials credentials) {
+        final RunCredentials forRun = forRun(run);
+        if (forRun.tracked.add(credentials)) {
+            forRun.untracked.add(credentials);
+            if (forRun.flushScheduled.compareAndSet(false, true)) {
+                Timer.get().schedule(() -> flush(run, forRun), TRACK_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static void flush(Run<?, ?> run, RunCredentials forRun) {
+        forRun.flushScheduled.set(false);
+        List<IdCredentials> credentials = new ArrayList<>();
+        for (IdCredentials c = forRun.untracked.poll(); c != null; c = forRun.untracked.poll()) {
+            credentials.add(c);
+        }
+        if (!credentials.isEmpty()) {
+            try {
+                CredentialsProvider.trackAll(run, credentials);
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.WARNING, "failed to track credentials usage for " + run, x);
+            }
+        }
+    }
+
+    /**
+     * Looks up several credentials concurrently, so that subsequent calls to {@link #findCredentialById} for them
+     * return quickly. Failures are ignored here; they will recur in those calls.
+     * @param ids IDs of credentials of any type
+     */
+    public static void prefetch(@Nonnull final Run<?, ?> run, @Nonnull Collection<String> ids) throws InterruptedException {
+        if (TTL <= 0 || ids.size() < 2) {
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (final String id : ids) {
+            futures.add(lookups.submit(() -> findCredentialById(id, IdCredentials.class, run)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException x) {
+                LOGGER.log(Level.FINE, "failed to look up credentials for " + run, x);
+            }
+        }
+    }
+
+    private static RunCredentials forRun(Run<?, ?> run) {
+        return cache.computeIfAbsent(run, r -> new RunCredentials());
+    }
+
+    private static final class RunCredentials {
+        /** Keyed by type and ID. */
+        final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<>();
+        /** Compared by identity. */
+        final Set<IdCredentials> tracked = Collections.newSetFromMap(new MapMaker().weakKeys().<IdCredentials, Boolean>makeMap());
+        /** Subset of {@link #tracked} not yet passed to {@link CredentialsProvider#trackAll(Run, List)}. */
+        final Queue<IdCredentials> untracked = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+    }
+
+    private static final class Lookup {
+        final IdCredentials credentials;
+        final long time;
+        Lookup(IdCredentials credentials, long time) {
+            this.credentials = credentials;
+            this.time = time;
+        }
+    }
+
+    @Extension public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            RunCredentials forRun = cache.remove(run);
+            if (forRun != null) {
+                flush(run, forRun);
+            }
+        }
+    }
+
+    @Extension public static final class SaveableListenerImpl extends SaveableListener {
+        @Override public void onChange(Saveable o, XmlFile file) {
+            if (mayHoldCredentials(o)) {
+                for (RunCredentials credentials : cache.values()) {
+                    credentials.lookups.clear();
+                }
+            }
+        }
+        private static boolean mayHoldCredentials(Saveable o) {
+            return o instanceof SystemCredentialsProvider || o instanceof CredentialsProvider || o instanceof CredentialsStore
+                    || o instanceof User || o instanceof ItemGroup;
+        }
+    }
+
+}
@@ -49,6 +49,14 @@ public class FileBinding extends AbstractOnDiskBinding<FileCredentials> {
         return FileCredentials.class;
     }
 
+    @Override protected final UnbindableDir.Entry entry(FileCredentials credentials) throws IOException {
+        UnbindableDir.Entry entry = UnbindableDir.Entry.file(credentials.getFileName(), credentials.getContent());
+        if (SecretFileStore.FILES) {
+            entry = entry.reusable(credentials.getId(), SecretFileStore.digest(credentials.getContent()));
+        }
+        return entry;
+    }
+
     @Override protected final FilePath write(FileCredentials credentials, FilePath dir) throws IOException, InterruptedException {
         FilePath secret = dir.child(credentials.getFileName());
         secret.copyFrom(credentials.getContent());
@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import jenkins.util.SystemProperties;
+
+/**
+ * Buffers for incomplete lines, shared by all {@link MaskingOutputStream}s that mask a line at a time.
+ * A stream only holds a buffer while it has an incomplete line, and a buffer grown for an unusually long line
+ * is dropped once that line is done, so idle streams and past long lines pin no memory.
+ */
+final class LineBuffers {
+
+    /** Size of pooled buffers, in bytes; longer lines get a larger buffer of their own. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static int SIZE = SystemProperties.getInteger(LineBuffers.class.getName() + ".SIZE", 8192);
+
+    /** How many idle buffers to keep. */
+    private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(SystemProperties.getInteger(LineBuffers.class.getName() + ".POOL_SIZE", 64));
+
+    private LineBuffers() {}
+
+    static byte[] acquire() {
+        byte[] buffer = pool.poll();
+        return buffer != null && buffer.length == SIZE ? buffer : new byte[SIZE];
+    }
+
+    /** Returns a buffer to the pool, unless it was grown, or the pool is full. */
+    static void release(byte[] buffer) {
+        if (buffer.length == SIZE) {
+            pool.offer(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Replaces secrets in console output with asterisks.
+ * Similar to {@code MaskPasswordsOutputStream}.
+ * When the {@link SecretMatcher} works on bytes, output is never decoded, nor buffered by line:
+ * it is passed along as soon as it cannot be part of a secret, so at most the length of the longest secret is held back.
+ * Otherwise output is decoded and masked a line at a time.
+ * Either way, what is passed along may be {@linkplain CoalescingOutputStream coalesced} into fewer, larger writes.
+ */
+final class MaskingOutputStream extends OutputStream {
+
+    static final String MASK = "****";
+
+    private final OutputStream logger;
+    private final Charset charset;
+    private final byte[] mask;
+    private final Supplier<SecretMatcher> matchers;
+    private SecretMatcher m;
+    /** Set once {@link #m} is known, if it works on bytes; otherwise output is masked a line at a time. */
+    private SecretMatcher.StreamMasker masker;
+    /** Holds the incomplete line, if any, when working on characters; from {@link LineBuffers}. */
+    private byte[] line;
+    private int lineLength;
+    private final byte[] single = new byte[1];
+
+    /**
+     * Constructor.
+     * @param logger the stream to write masked output to
+     * @param charset the encoding of the output
+     * @param matchers supplies the matcher, ideally {@linkplain SecretMatcher#compile(java.util.Collection, Charset) compiled for} {@code charset};
+     *                 called before each write until it returns non-null, since secrets may not be known yet when the stream is created
+     */
+    MaskingOutputStream(OutputStream logger, Charset charset, Supplier<SecretMatcher> matchers) {
+        this.logger = CoalescingOutputStream.SIZE > 0 ? new CoalescingOutputStream(logger, CoalescingOutputStream.SIZE, CoalescingOutputStream.DELAY) : logger;
+        this.charset = charset;
+        this.mask = MASK.getBytes(charset);
+        this.matchers = matchers;
+    }
+
+    /**
+     * Creates a masking stream, {@linkplain PipelinedOutputStream pipelined} if so configured.
+     * @see #MaskingOutputStream(OutputStream, Charset, Supplier)
+     */
+    static OutputStream of(OutputStream logger, Charset charset, Supplier<SecretMatcher> matchers) {
+        OutputStream masking = new MaskingOutputStream(logger, charset, matchers);
+        return PipelinedOutputStream.ENABLED ? new PipelinedOutputStream(masking) : masking;
+    }
+
+    /**
+     * Whether a stream created by {@link #of} may hold back what is written to it until flushed,
+     * rather than pass it along as soon as it can.
+     */
+    static boolean holdsBack(OutputStream stream) {
+        return stream instanceof PipelinedOutputStream
+                || stream instanceof MaskingOutputStream && ((MaskingOutputStream) stream).logger instanceof CoalescingOutputStream;
+    }
+
+    /**
+     * Looks up the matcher if not yet known.
+     * @return false if there is nothing to mask (yet)
+     */
+    private boolean ready() {
+        if (m == null) {
+            m = matchers.get();
+            if (m == null || m.isEmpty()) {
+                return false;
+            }
+            if (m.getCharset() != null) {
+                masker = m.newStreamMasker(mask, logger);
+            }
+        }
+        return !m.isEmpty();
+    }
+
+    @Override public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        if (!ready()) {
+            logger.write(b, off, len);
+        } else if (masker != null) {
+            masker.write(b, off, len);
+        } else {
+            writeLines(b, off, len);
+        }
+    }
+
+    private void writeLines(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            int eol = off;
+            while (eol < end && b[eol] != '\n') {
+                eol++;
+            }
+            if (eol == end) {
+                append(b, off, end - off);
+                break;
+            }
+            eol++;
+            if (lineLength == 0) {
+                // Complete line, so no need to copy it.
+                eol(b, off, eol - off);
+            } else {
+                append(b, off, eol - off);
+                eol(line, 0, lineLength);
+                lineLength = 0;
+            }
+            off = eol;
+        }
+        if (lineLength == 0 && line != null) {
+            LineBuffers.release(line);
+            line = null;
+        }
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (line == null) {
+            line = LineBuffers.acquire();
+        }
+        if (lineLength + len > line.length) {
+            byte[] grown = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+            LineBuffers.release(line);
+            line = grown;
+        }
+        System.arraycopy(b, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private void eol(byte[] b, int off, int len) throws IOException {
+        String masked = m.replaceAll(new String(b, off, len, charset), MASK);
+        if (masked != null) {
+            logger.write(masked.getBytes(charset));
+        } else {
+            // Avoid byte → char → byte conversion unless we are actually doing something.
+            logger.write(b, off, len);
+        }
+    }
+
+    /** Passes along everything written so far, except any possible beginning of a secret. */
+    @Override public void flush() throws IOException {
+        logger.flush();
+    }
+
+    @Override public void close() throws IOException {
+        if (masker != null) {
+            masker.finish();
+        } else if (line != null) {
+            if (lineLength > 0) {
+                eol(line, 0, lineLength);
+                lineLength = 0;
+            }
+            LineBuffers.release(line);
+            line = null;
+        }
+        logger.close();
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+
+/**
+ * Hands whatever is written to a worker thread, which writes it to another stream,
+ * so that the writing thread does not wait for that stream (for example, for masking) unless it falls far behind.
+ * Each stream is drained by at most one worker at a time, so order is kept.
+ * {@link #flush} and {@link #close} wait for everything written so far to be passed along.
+ * Workers are shared by all streams, so a worker passes along at most {@link #BATCH} writes of a stream before
+ * letting other streams have a turn.
+ * A worker may still be held up by a stream that blocks, so if a stream has been waiting for a worker for too long,
+ * or its queue is full, the writing thread passes along its output itself, as if this were not in use.
+ */
+final class PipelinedOutputStream extends OutputStream {
+
+    /** Whether {@link MaskingOutputStream#of} uses this. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static boolean ENABLED = SystemProperties.getBoolean(PipelinedOutputStream.class.getName() + ".ENABLED");
+
+    /** How many writes may be waiting for a worker before the writing thread blocks. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static int QUEUE_SIZE = SystemProperties.getInteger(PipelinedOutputStream.class.getName() + ".QUEUE_SIZE", 256);
+
+    /** How many writes a worker passes along before taking another stream. */
+    static final int BATCH = 64;
+
+    /** How long a stream waits for a worker before the writing thread takes over. */
+    private static final long MAX_WAIT = TimeUnit.SECONDS.toNanos(1);
+
+    /** Threads time out when idle. */
+    private static final Executor workers;
+    static {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "withCredentials masking"));
+        executor.allowCoreThreadTimeOut(true);
+        workers = executor;
+    }
+
+    /** Nothing is queued, nor being passed along. */
+    private static final int IDLE = 0;
+    /** Waiting for a worker. */
+    private static final int SCHEDULED = 1;
+    /** A worker, or the writing thread, is passing along what is queued. */
+    private static final int RUNNING = 2;
+
+    private final OutputStream out;
+    private final BlockingQueue<byte[]> queue;
+    private final Executor executor;
+    /** Guards {@link #state}, and is notified when it changes. */
+    private final Object lock = new Object();
+    private int state = IDLE;
+    /** When {@link #state} last became {@link #SCHEDULED}. */
+    private long scheduledAt;
+    private volatile IOException failure;
+    private boolean closed;
+
+    PipelinedOutputStream(OutputStream out) {
+        this(out, QUEUE_SIZE);
+    }
+
+    PipelinedOutputStream(OutputStream out, int queueSize) {
+        this(out, queueSize, workers);
+    }
+
+    PipelinedOutputStream(OutputStream out, int queueSize, Executor executor) {
+        this.out = out;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.executor = executor;
+    }
+
+    @Override public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        checkFailure();
+        if (len == 0) {
+            return;
+        }
+        byte[] chunk = Arrays.copyOfRange(b, off, off + len);
+        boolean queued = queue.offer(chunk);
+        if (!queued || waitedTooLong()) {
+            // Perhaps every worker is busy with a stream that blocks; do not wait for them.
+            if (claim()) {
+                drain(Integer.MAX_VALUE);
+            }
+            if (!queued) {
+                try {
+                    queue.put(chunk);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        synchronized (lock) {
+            if (state == IDLE && !queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /** Hands this stream to a worker. Call while holding {@link #lock}. */
+    private void schedule() {
+        state = SCHEDULED;
+        scheduledAt = System.nanoTime();
+        lock.notifyAll();
+        executor.execute(() -> {
+            if (claim()) {
+                drain(BATCH);
+            }
+        });
+    }
+
+    /** Takes over passing along what is queued, unless some thread already does. */
+    private boolean claim() {
+        synchronized (lock) {
+            if (state != SCHEDULED) {
+                return false;
+            }
+            state = RUNNING;
+            return true;
+        }
+    }
+
+    private boolean waitedTooLong() {
+        synchronized (lock) {
+            return state == SCHEDULED && System.nanoTime() - scheduledAt > MAX_WAIT;
+        }
+    }
+
+    /**
+     * Passes along what is queued, having {@linkplain #claim claimed} it.
+     * @param batch how many writes to pass along before letting another stream have the worker
+     */
+    private void drain(int batch) {
+        while (true) {
+            try {
+                int n = 0;
+                for (byte[] chunk = queue.poll(); chunk != null; chunk = n < batch ? queue.poll() : null) {
+                    if (failure == null) {
+                        out.write(chunk);
+                    }
+                    n++;
+                }
+            } catch (IOException x) {
+                failure = x;
+            } catch (RuntimeException x) {
+                failure = new IOException(x);
+            }
+            synchronized (lock) {
+                // Something may have been queued after the last poll, while still running.
+                if (queue.isEmpty()) {
+                    state = IDLE;
+                    lock.notifyAll();
+                    return;
+                }
+                if (batch != Integer.MAX_VALUE) {
+                    schedule();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Waits until everything written so far has been passed along, doing so itself if no worker has started. */
+    private void await() throws IOException {
+        while (true) {
+            synchronized (lock) {
+                if (state == IDLE) {
+                    break;
+                }
+                if (state == RUNNING) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    continue;
+                }
+            }
+            if (claim()) {
+                drain(Integer.MAX_VALUE);
+            }
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException x = failure;
+        if (x != null) {
+            throw new IOException(x);
+        }
+    }
+
+    @Override public void flush() throws IOException {
+        await();
+        out.flush();
+    }
+
+    @Override public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            await();
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -39,6 +39,7 @@ import org.kohsuke.stapler.DataBoundSetter;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class SSHUserPrivateKeyBinding extends MultiBinding<SSHUserPrivateKey> {
@@ -90,16 +91,15 @@ public class SSHUserPrivateKeyBinding extends MultiBinding<SSHUserPrivateKey> {
 
     @Override public MultiEnvironment bind(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
         SSHUserPrivateKey sshKey = getCredentials(build);
-        UnbindableDir keyDir = UnbindableDir.create(workspace);
-        FilePath keyFile =  keyDir.getDirPath().child("ssh-key-" + keyFileVariable);
-
         StringBuilder contents = new StringBuilder();
         for (String key : sshKey.getPrivateKeys()) {
             contents.append(key);
             contents.append('\n');
         }
-        keyFile.write(contents.toString(), "UTF-8");
-        keyFile.chmod(0400);
+        String keyFileName = "ssh-key-" + keyFileVariable;
+        UnbindableDir keyDir = UnbindableDir.create(workspace, Collections.singletonList(
+                UnbindableDir.Entry.file(keyFileName, contents.toString().getBytes(StandardCharsets.UTF_8)).reusable(sshKey.getId())));
+        FilePath keyFile = keyDir.getDirPath().child(keyFileName);
 
         Map<String, String> map = new LinkedHashMap<>();
         map.put(keyFileVariable, keyFile.getRemote());
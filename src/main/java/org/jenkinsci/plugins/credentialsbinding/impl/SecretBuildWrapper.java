@@ -24,16 +24,17 @@
 
 package org.jenkinsci.plugins.credentialsbinding.impl;
 
+import com.google.common.collect.MapMaker;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.console.ConsoleLogFilter;
-import hudson.console.LineTransformationOutputStream;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Run;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import org.jenkinsci.plugins.credentialsbinding.BindingMetrics;
 import org.jenkinsci.plugins.credentialsbinding.MultiBinding;
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -41,8 +42,10 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.*;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 @SuppressWarnings({"rawtypes", "unchecked"}) // inherited from BuildWrapper
@@ -50,20 +53,69 @@ public class SecretBuildWrapper extends BuildWrapper {
 
     private /*almost final*/ List<? extends MultiBinding<?>> bindings;
 
-    private final static Map<AbstractBuild<?, ?>, Collection<String>> secretsForBuild = new WeakHashMap<AbstractBuild<?, ?>, Collection<String>>();
+    /**
+     * Secrets of builds currently in progress.
+     * Written from {@link #setUp} and {@link Environment#tearDown} but read for every line of log output, from many threads at once.
+     * Keys are weak and compared by identity, and reads do not lock.
+     */
+    private final static ConcurrentMap<AbstractBuild<?, ?>, BuildSecrets> secretsForBuild = new MapMaker().weakKeys().makeMap();
 
     /**
      * Gets the {@link Pattern} for the secret values for a given build, if that build has secrets defined. If not, return
      * null.
+     * The pattern is compiled once and reused until the secrets for the build change.
      * @param build A non-null build.
      * @return A compiled {@link Pattern} from the build's secret values, if the build has any.
      */
     public static @CheckForNull Pattern getPatternForBuild(@Nonnull AbstractBuild<?, ?> build) {
-        if (secretsForBuild.containsKey(build)) {
-            return Pattern.compile(MultiBinding.getPatternStringForSecrets(secretsForBuild.get(build)));
-        } else {
-            return null;
+        BuildSecrets secrets = secretsForBuild.get(build);
+        return secrets != null ? secrets.getPattern() : null;
+    }
+
+    /**
+     * Like {@link #getPatternForBuild} but produces a {@link SecretMatcher}.
+     */
+    static @CheckForNull SecretMatcher getMatcherForBuild(@Nonnull AbstractBuild<?, ?> build, @Nonnull Charset charset) {
+        BuildSecrets secrets = secretsForBuild.get(build);
+        return secrets != null ? secrets.getMatcher(charset) : null;
+    }
+
+    static void registerSecrets(@Nonnull AbstractBuild<?, ?> build, @Nonnull Collection<String> secrets) {
+        secretsForBuild.put(build, new BuildSecrets(secrets));
+    }
+
+    static void unregisterSecrets(@Nonnull AbstractBuild<?, ?> build) {
+        secretsForBuild.remove(build);
+    }
+
+    /**
+     * The secrets bound for one build, and whatever has been compiled from them so far.
+     * Registering different secrets for the build replaces this object, discarding anything compiled.
+     */
+    static final class BuildSecrets {
+
+        private final Collection<String> secrets;
+        private volatile Pattern pattern;
+        private final ConcurrentMap<Charset, SecretMatcher> matchers = new ConcurrentHashMap<>();
+
+        BuildSecrets(Collection<String> secrets) {
+            this.secrets = Collections.unmodifiableSet(new HashSet<>(secrets));
+        }
+
+        Pattern getPattern() {
+            Pattern p = pattern;
+            if (p == null) {
+                // Compiling twice in a race is harmless; the results are equivalent.
+                p = Pattern.compile(MultiBinding.getPatternStringForSecrets(secrets));
+                pattern = p;
+            }
+            return p;
+        }
+
+        SecretMatcher getMatcher(Charset charset) {
+            return matchers.computeIfAbsent(charset, c -> SecretMatcher.compile(secrets, c));
         }
+
     }
 
     @DataBoundConstructor public SecretBuildWrapper(List<? extends MultiBinding<?>> bindings) {
@@ -84,14 +136,25 @@ public class SecretBuildWrapper extends BuildWrapper {
 
         Set<String> secrets = new HashSet<String>();
 
+        BindingMetrics.Sample total = new BindingMetrics.Sample();
         for (MultiBinding binding : bindings) {
-            MultiBinding.MultiEnvironment e = binding.bind(build, build.getWorkspace(), launcher, listener);
+            BindingMetrics.Sample sample = BindingMetrics.Sample.start();
+            MultiBinding.MultiEnvironment e;
+            try {
+                e = binding.bind(build, build.getWorkspace(), launcher, listener);
+            } finally {
+                BindingMetrics.fireBind(build, binding, sample.stop());
+                total.add(sample);
+            }
             m.add(e);
             secrets.addAll(e.getValues().values());
         }
+        if (BindingStep.LOG_METRICS) {
+            listener.getLogger().println("Bound credentials in " + total);
+        }
 
         if (!secrets.isEmpty()) {
-            secretsForBuild.put(build, secrets);
+            registerSecrets(build, secrets);
         }
 
         return new Environment() {
@@ -103,10 +166,18 @@ public class SecretBuildWrapper extends BuildWrapper {
                 }
             }
             @Override public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
-                for (MultiBinding.MultiEnvironment e : m) {
-                    e.getUnbinder().unbind(build, build.getWorkspace(), launcher, listener);
+                BindingMetrics.Sample sample = BindingMetrics.Sample.start();
+                try {
+                    for (MultiBinding.MultiEnvironment e : m) {
+                        e.getUnbinder().unbind(build, build.getWorkspace(), launcher, listener);
+                    }
+                } finally {
+                    BindingMetrics.fireUnbind(build, sample.stop());
+                    if (BindingStep.LOG_METRICS) {
+                        listener.getLogger().println("Unbound credentials in " + sample);
+                    }
                 }
-                secretsForBuild.remove(build);
+                unregisterSecrets(build);
                 return true;
             }
         };
@@ -135,37 +206,8 @@ public class SecretBuildWrapper extends BuildWrapper {
         }
 
         @Override public OutputStream decorateLogger(final AbstractBuild build, final OutputStream logger) throws IOException, InterruptedException {
-            return new LineTransformationOutputStream() {
-                Pattern p;
-
-                @Override protected void eol(byte[] b, int len) throws IOException {
-                    if (p == null) {
-                        p = getPatternForBuild(build);
-                    }
-
-                    if (p != null && !p.toString().isEmpty()) {
-                        Matcher m = p.matcher(new String(b, 0, len, charsetName));
-                        if (m.find()) {
-                            logger.write(m.replaceAll("****").getBytes(charsetName));
-                        } else {
-                            // Avoid byte → char → byte conversion unless we are actually doing something.
-                            logger.write(b, 0, len);
-                        }
-                    } else {
-                        // Avoid byte → char → byte conversion unless we are actually doing something.
-                        logger.write(b, 0, len);
-                    }
-                }
-
-                @Override public void flush() throws IOException {
-                    logger.flush();
-                }
-
-                @Override public void close() throws IOException {
-                    super.close();
-                    logger.close();
-                }
-            };
+            final Charset charset = Charset.forName(charsetName);
+            return MaskingOutputStream.of(logger, charset, () -> getMatcherForBuild(build, charset));
         }
 
     }
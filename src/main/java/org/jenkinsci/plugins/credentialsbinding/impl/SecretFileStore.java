@@ -0,0 +1,356 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.SystemProperties;
+
+/**
+ * Secret content kept on an agent, in a locked-down directory under its root, so that it need not be sent and written
+ * again for every build.
+ * Entries are keyed by credentials and by a digest of their content; when the content changes, entries for older
+ * versions are deleted.
+ * Secret files, and archives once extracted, are copied into the temporary directory of each binding, so a build
+ * modifying its copy leaves the store intact.
+ * A stored entry is checked against a digest whenever it is copied, and replaced if it does not match:
+ * for a file, the digest it is named after; for an extracted archive, one of the extracted tree recorded alongside it.
+ * Up to {@link #MAX_UNUSED} entries of each kind are kept per agent, and beyond that the least recently used
+ * are deleted.
+ * Off by default, since it leaves secrets on agents between builds.
+ */
+final class SecretFileStore {
+
+    /** Whether archives bound by {@link ZipFileBinding} are kept in the store once extracted. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static boolean ZIP = SystemProperties.getBoolean(SecretFileStore.class.getName() + ".ZIP");
+
+    /** Whether secret files written by {@link FileBinding}, {@link SSHUserPrivateKeyBinding} and {@link CertificateMultiBinding} are kept in the store. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static boolean FILES = SystemProperties.getBoolean(SecretFileStore.class.getName() + ".FILES");
+
+    /** How many entries of each kind to keep on each agent. */
+    @SuppressFBWarnings(value="MS_SHOULD_BE_FINAL", justification="for tests and the script console")
+    static int MAX_UNUSED = SystemProperties.getInteger(SecretFileStore.class.getName() + ".MAX_UNUSED", 20);
+
+    /** Within an extracted archive entry, the extracted tree. */
+    private static final String TREE = "tree";
+    /** Within an extracted archive entry, the digest of {@link #TREE}. */
+    private static final String MANIFEST = "manifest";
+
+    /**
+     * In the agent JVM, guards changes to the store, and {@link #copying}.
+     * Held only to look entries up, move them into place and delete them, never while copying.
+     */
+    private static final Object lock = new Object();
+
+    /** In the agent JVM, the number of copies being made of each entry, by path, so that it is not deleted meanwhile. */
+    private static final Map<String, Integer> copying = new HashMap<>();
+
+    private SecretFileStore() {}
+
+    /**
+     * Finds the store on the agent a workspace is on.
+     * @return the store directory, or null if the agent is not known
+     */
+    static @CheckForNull FilePath of(@Nonnull FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        Node node = computer != null ? computer.getNode() : null;
+        FilePath root = node != null ? node.getRootPath() : null;
+        return root != null ? root.child("secretFileStore") : null;
+    }
+
+    /**
+     * Computes a digest of some content.
+     * @param content a stream, which is closed
+     * @return a hexadecimal SHA-256 hash
+     */
+    static String digest(InputStream content) throws IOException {
+        MessageDigest md = newDigest();
+        try (InputStream in = content) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        }
+        return Util.toHexString(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    /**
+     * Identifies some content in the store.
+     * @param credentialsId the credentials it came from
+     * @param digest from {@link #digest}
+     */
+    static String key(@Nonnull String credentialsId, @Nonnull String digest) {
+        return Util.getDigestOf(credentialsId) + "/" + digest;
+    }
+
+    /**
+     * Copies a file, or the tree extracted from a ZIP archive, from the store, first reading it into the store if missing
+     * or no longer intact. Runs on the agent.
+     * Older versions of the same credentials are then deleted.
+     * @param store the store directory
+     * @param key from {@link #key}
+     * @param content read only if the store does not have it; closed
+     * @param target where the file or directory should appear
+     * @param zip whether the content is a ZIP archive, to extract
+     * @param maxUnused as {@link #MAX_UNUSED}
+     */
+    static void place(File store, String key, InputStream content, File target, boolean zip, int maxUnused) throws IOException, InterruptedException {
+        File kind = new File(store, zip ? "zip" : "files");
+        File stored = new File(kind, key);
+        try (InputStream in = content) {
+            if (acquire(stored)) {
+                boolean intact;
+                try {
+                    intact = copy(stored, stored.getName(), target, zip);
+                } finally {
+                    release(stored);
+                }
+                if (intact) {
+                    return;
+                }
+            }
+            File versions = stored.getParentFile();
+            mkdirs(store);
+            mkdirs(kind);
+            mkdirs(versions);
+            File tmp = new File(versions, stored.getName() + ".tmp-" + UUID.randomUUID());
+            if (zip) {
+                mkdirs(tmp);
+                File tree = new File(tmp, TREE);
+                new FilePath(tree).unzipFrom(in);
+                MessageDigest md = newDigest();
+                walk(tree, null, md);
+                Files.write(new File(tmp, MANIFEST).toPath(), Util.toHexString(md.digest()).getBytes(StandardCharsets.US_ASCII));
+            } else {
+                // Read in big chunks, since each read may be a call to the controller.
+                Files.copy(new BufferedInputStream(in, 1 << 20), tmp.toPath());
+                new FilePath(tmp).chmod(0400);
+            }
+            // Nothing else uses the new entry yet, so copy it before moving it into place.
+            if (!copy(tmp, stored.getName(), target, zip)) {
+                new FilePath(tmp).deleteRecursive();
+                throw new IOException("content of " + key + " does not match its digest");
+            }
+            List<File> obsolete = new ArrayList<>();
+            synchronized (lock) {
+                if (!stored.exists()) {
+                    Files.move(tmp.toPath(), stored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } else if (!copying.containsKey(stored.getPath())) { // perhaps no longer intact
+                    obsolete.add(moveAside(stored));
+                    Files.move(tmp.toPath(), stored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } else { // stored meanwhile
+                    obsolete.add(tmp);
+                }
+                File[] others = versions.listFiles();
+                if (others != null) {
+                    for (File other : others) {
+                        if (!other.equals(stored) && !isTemporary(other) && !copying.containsKey(other.getPath())) {
+                            obsolete.add(moveAside(other));
+                        }
+                    }
+                }
+                obsolete.addAll(evict(kind, maxUnused));
+            }
+            for (File entry : obsolete) {
+                new FilePath(entry).deleteRecursive();
+            }
+        }
+    }
+
+    /** Marks an entry as being copied, if it exists. */
+    private static boolean acquire(File stored) {
+        synchronized (lock) {
+            if (!stored.exists()) {
+                return false;
+            }
+            copying.merge(stored.getPath(), 1, Integer::sum);
+            stored.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+    }
+
+    private static void release(File stored) {
+        synchronized (lock) {
+            copying.computeIfPresent(stored.getPath(), (path, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Renames an entry to a temporary name, so that it can be deleted without holding {@link #lock}.
+     * Call while holding {@link #lock}.
+     */
+    private static File moveAside(File entry) throws IOException {
+        File aside = new File(entry.getParentFile(), entry.getName() + ".tmp-" + UUID.randomUUID());
+        Files.move(entry.toPath(), aside.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return aside;
+    }
+
+    /**
+     * Copies a stored entry, checking it against its digest.
+     * The target is not linked to the store, since the build owns it and may well change it.
+     * @param name the name of the entry in the store, which for a file is its digest
+     * @return false if the stored entry was changed, in which case nothing is copied
+     */
+    private static boolean copy(File stored, String name, File target, boolean zip) throws IOException, InterruptedException {
+        MessageDigest md = newDigest();
+        String expected;
+        if (zip) {
+            try {
+                expected = new String(Files.readAllBytes(new File(stored, MANIFEST).toPath()), StandardCharsets.US_ASCII);
+            } catch (NoSuchFileException x) {
+                return false;
+            }
+            walk(new File(stored, TREE), target, md);
+        } else {
+            expected = name;
+            try (InputStream in = new DigestInputStream(Files.newInputStream(stored.toPath()), md)) {
+                Files.copy(in, target.toPath());
+            }
+        }
+        if (!Util.toHexString(md.digest()).equals(expected)) {
+            new FilePath(target).deleteRecursive();
+            return false;
+        }
+        new FilePath(target).chmod(zip ? 0700 : 0400);
+        return true;
+    }
+
+    /**
+     * Computes a digest of a directory tree, and optionally copies it.
+     * Covers names and executable bits as well as contents, so that adding, removing or renaming anything changes it.
+     * @param to where to copy the tree, or null to only compute the digest
+     */
+    private static void walk(File from, @CheckForNull File to, MessageDigest md) throws IOException {
+        if (to != null) {
+            Files.createDirectory(to.toPath());
+        }
+        String[] names = from.list();
+        if (names == null) {
+            throw new IOException("could not list " + from);
+        }
+        Arrays.sort(names);
+        byte[] buffer = new byte[8192];
+        for (String name : names) {
+            File child = new File(from, name);
+            File copy = to != null ? new File(to, name) : null;
+            md.update(name.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            if (child.isDirectory()) {
+                md.update((byte) 'd');
+                walk(child, copy, md);
+                md.update((byte) 0); // no name is empty, so this ends the directory unambiguously
+            } else {
+                boolean executable = child.canExecute();
+                md.update((byte) (executable ? 'x' : 'f'));
+                md.update(ByteBuffer.allocate(Long.BYTES).putLong(child.length()).array());
+                try (InputStream in = new DigestInputStream(Files.newInputStream(child.toPath()), md)) {
+                    if (copy != null) {
+                        Files.copy(in, copy.toPath());
+                    } else {
+                        while (in.read(buffer) != -1) {
+                            // only digesting
+                        }
+                    }
+                }
+                if (copy != null && executable) {
+                    copy.setExecutable(true, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves aside the least recently used entries not being copied, beyond {@code maxUnused}.
+     * Call while holding {@link #lock}.
+     * @return the entries moved aside, to delete
+     */
+    private static List<File> evict(File kind, int maxUnused) throws IOException {
+        List<File> unused = new ArrayList<>();
+        File[] credentials = kind.listFiles();
+        if (credentials == null) {
+            return unused;
+        }
+        for (File versions : credentials) {
+            File[] entries = versions.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    if (!isTemporary(entry) && !copying.containsKey(entry.getPath())) {
+                        unused.add(entry);
+                    }
+                }
+            }
+        }
+        unused.sort(Comparator.comparingLong(File::lastModified).reversed());
+        List<File> evicted = new ArrayList<>();
+        for (File entry : unused.subList(Math.min(maxUnused, unused.size()), unused.size())) {
+            evicted.add(moveAside(entry));
+        }
+        return evicted;
+    }
+
+    private static boolean isTemporary(File entry) {
+        return entry.getName().contains(".tmp-");
+    }
+
+    private static void mkdirs(File dir) throws IOException, InterruptedException {
+        FilePath d = new FilePath(dir);
+        d.mkdirs();
+        d.chmod(0700);
+    }
+
+}
@@ -0,0 +1,477 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.credentialsbinding.MultiBinding;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Finds and replaces any of a fixed set of secrets in text, using an Aho-Corasick automaton.
+ * Unlike the alternation built by {@link MultiBinding#getPatternStringForSecrets}, the cost of a scan depends only on
+ * the length of the text, not on the number of secrets.
+ * Matching semantics are the same as for that pattern: leftmost match first, preferring the longest secret starting
+ * at a given position, and never overlapping a previous replacement.
+ * A matcher either works on characters, or on bytes in a particular encoding; see {@link #getCharset}.
+ * Instances are immutable and may be shared across threads.
+ */
+@Restricted(NoExternalUse.class)
+public final class SecretMatcher {
+
+    private static final SecretMatcher EMPTY = new SecretMatcher(new int[0][], null);
+
+    /** If not null, symbols are bytes in this encoding; otherwise characters. */
+    private final @CheckForNull Charset charset;
+    /** Maps a symbol to its column in {@link #delta}; symbols beyond the end of the table, or mapped to 0, occur in no secret. */
+    private final int[] classes;
+    /** Number of columns in {@link #delta}. */
+    private final int alphabet;
+    /** Fully resolved transition table: {@code delta[state * alphabet + class]} is the next state. */
+    private final int[] delta;
+    /** Length of the secret ending at each state, or 0 if the state does not complete a secret. */
+    private final int[] output;
+    /** Next state along the failure chain which completes a secret, or -1. */
+    private final int[] dictionary;
+    /** Length of the path from the root to each state, i.e. of the secret prefix it represents. */
+    private final int[] depth;
+    /** Length of the longest secret. */
+    private final int maxLength;
+
+    /**
+     * Builds a matcher for some secrets, working on characters.
+     * @param secrets secret values; empty values are ignored
+     * @return a matcher, possibly {@linkplain #isEmpty empty}
+     */
+    public static @Nonnull SecretMatcher compile(@Nonnull Collection<String> secrets) {
+        Set<String> distinct = distinct(secrets);
+        if (distinct.isEmpty()) {
+            return EMPTY;
+        }
+        int[][] patterns = new int[distinct.size()][];
+        int i = 0;
+        for (String secret : distinct) {
+            int[] pattern = new int[secret.length()];
+            for (int j = 0; j < pattern.length; j++) {
+                pattern[j] = secret.charAt(j);
+            }
+            patterns[i++] = pattern;
+        }
+        return new SecretMatcher(patterns, null);
+    }
+
+    /**
+     * Builds a matcher for some secrets appearing in text of a given encoding.
+     * If the encoding permits, the matcher works directly on encoded bytes, so text need never be decoded:
+     * this is the case for UTF-8, whose encoded characters cannot be confused with parts of other characters,
+     * and for any single-byte encoding.
+     * Otherwise this falls back to {@link #compile(Collection)}.
+     * @param secrets secret values; empty values are ignored
+     * @param charset the encoding of the text to be scanned
+     * @return a matcher, possibly {@linkplain #isEmpty empty}
+     */
+    public static @Nonnull SecretMatcher compile(@Nonnull Collection<String> secrets, @Nonnull Charset charset) {
+        CharsetEncoder encoder = charset.newEncoder();
+        if (!charset.equals(StandardCharsets.UTF_8) && encoder.maxBytesPerChar() != 1) {
+            return compile(secrets);
+        }
+        Set<String> distinct = distinct(secrets);
+        List<int[]> patterns = new ArrayList<>();
+        for (String secret : distinct) {
+            if (!encoder.canEncode(secret)) {
+                continue; // could never appear in decoded text anyway
+            }
+            byte[] encoded = secret.getBytes(charset);
+            int[] pattern = new int[encoded.length];
+            for (int j = 0; j < pattern.length; j++) {
+                pattern[j] = encoded[j] & 0xFF;
+            }
+            patterns.add(pattern);
+        }
+        return new SecretMatcher(patterns.toArray(new int[patterns.size()][]), charset);
+    }
+
+    private static Set<String> distinct(Collection<String> secrets) {
+        Set<String> distinct = new LinkedHashSet<>();
+        for (String secret : secrets) {
+            if (secret != null && !secret.isEmpty()) {
+                distinct.add(secret);
+            }
+        }
+        return distinct;
+    }
+
+    private SecretMatcher(int[][] patterns, @CheckForNull Charset charset) {
+        this.charset = charset;
+        int maxSymbol = -1;
+        int maxLength = 0;
+        for (int[] pattern : patterns) {
+            for (int symbol : pattern) {
+                maxSymbol = Math.max(maxSymbol, symbol);
+            }
+            maxLength = Math.max(maxLength, pattern.length);
+        }
+        this.maxLength = maxLength;
+        // Compress the alphabet to the symbols actually used, so the table stays small even for non-ASCII secrets.
+        classes = new int[maxSymbol + 1];
+        int alphabet = 1;
+        for (int[] pattern : patterns) {
+            for (int symbol : pattern) {
+                if (classes[symbol] == 0) {
+                    classes[symbol] = alphabet++;
+                }
+            }
+        }
+        this.alphabet = alphabet;
+
+        // Build the trie.
+        List<int[]> gotos = new ArrayList<>();
+        List<Integer> terminals = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        gotos.add(newRow(alphabet));
+        terminals.add(0);
+        depths.add(0);
+        for (int[] pattern : patterns) {
+            int state = 0;
+            for (int symbol : pattern) {
+                int[] row = gotos.get(state);
+                int cls = classes[symbol];
+                if (row[cls] == -1) {
+                    row[cls] = gotos.size();
+                    gotos.add(newRow(alphabet));
+                    terminals.add(0);
+                    depths.add(depths.get(state) + 1);
+                }
+                state = row[cls];
+            }
+            terminals.set(state, pattern.length);
+        }
+        int states = gotos.size();
+        delta = new int[states * alphabet];
+        output = new int[states];
+        depth = new int[states];
+        dictionary = new int[states];
+        int[] failure = new int[states];
+        for (int s = 0; s < states; s++) {
+            output[s] = terminals.get(s);
+            depth[s] = depths.get(s);
+        }
+
+        // Breadth-first, resolving failure links into the transition table.
+        Queue<Integer> queue = new ArrayDeque<>();
+        int[] root = gotos.get(0);
+        for (int cls = 0; cls < alphabet; cls++) {
+            int next = root[cls];
+            if (next == -1 || cls == 0) {
+                delta[cls] = 0;
+            } else {
+                delta[cls] = next;
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        dictionary[0] = -1;
+        while (!queue.isEmpty()) {
+            int s = queue.remove();
+            int f = failure[s];
+            dictionary[s] = output[f] > 0 ? f : dictionary[f];
+            int[] row = gotos.get(s);
+            for (int cls = 0; cls < alphabet; cls++) {
+                int next = cls == 0 ? -1 : row[cls];
+                if (next == -1) {
+                    delta[s * alphabet + cls] = delta[f * alphabet + cls];
+                } else {
+                    delta[s * alphabet + cls] = next;
+                    failure[next] = delta[f * alphabet + cls];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    private static int[] newRow(int alphabet) {
+        int[] row = new int[alphabet];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    /** True if there are no secrets to look for, in which case text can be passed through unchanged. */
+    public boolean isEmpty() {
+        return maxLength == 0;
+    }
+
+    /**
+     * The encoding of bytes this matcher works on, if it was {@linkplain #compile(Collection, Charset) compiled for one}.
+     * @return null if this matcher works on characters, in which case use {@link #replaceAll(CharSequence, String)};
+     *         else use {@link #writeMasked}
+     */
+    public @CheckForNull Charset getCharset() {
+        return charset;
+    }
+
+    /** Length of the longest secret (in characters, or bytes if {@link #getCharset} is set), or 0 if {@linkplain #isEmpty empty}. */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    private int step(int state, int symbol) {
+        return delta[state * alphabet + (symbol < classes.length ? classes[symbol] : 0)];
+    }
+
+    /**
+     * Replaces every occurrence of a secret.
+     * Only valid when {@link #getCharset} is null.
+     * @param text some text
+     * @param replacement what to substitute for each occurrence
+     * @return the text with secrets replaced, or null if there were no occurrences
+     */
+    public String replaceAll(@Nonnull CharSequence text, @Nonnull String replacement) {
+        if (isEmpty()) {
+            return null;
+        }
+        int len = text.length();
+        int[] longest = null;
+        int state = 0;
+        for (int i = 0; i < len; i++) {
+            state = step(state, text.charAt(i));
+            for (int t = output[state] > 0 ? state : dictionary[state]; t != -1; t = dictionary[t]) {
+                if (longest == null) {
+                    longest = new int[len];
+                }
+                int start = i - output[t] + 1;
+                longest[start] = Math.max(longest[start], output[t]);
+            }
+        }
+        if (longest == null) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder(len);
+        int i = 0;
+        while (i < len) {
+            if (longest[i] > 0) {
+                b.append(replacement);
+                i += longest[i];
+            } else {
+                b.append(text.charAt(i++));
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * Writes out some bytes, replacing every occurrence of a secret.
+     * Only valid when {@link #getCharset} is set.
+     * @param b a buffer
+     * @param off offset of the first byte to scan
+     * @param len number of bytes to scan
+     * @param replacement what to substitute for each occurrence, in the same encoding
+     * @param out where to write the result
+     * @return true if any secret was found
+     */
+    public boolean writeMasked(@Nonnull byte[] b, int off, int len, @Nonnull byte[] replacement, @Nonnull OutputStream out) throws IOException {
+        int[] longest = null;
+        if (!isEmpty()) {
+            int state = 0;
+            for (int i = 0; i < len; i++) {
+                state = step(state, b[off + i] & 0xFF);
+                for (int t = output[state] > 0 ? state : dictionary[state]; t != -1; t = dictionary[t]) {
+                    if (longest == null) {
+                        longest = new int[len];
+                    }
+                    int start = i - output[t] + 1;
+                    longest[start] = Math.max(longest[start], output[t]);
+                }
+            }
+        }
+        if (longest == null) {
+            out.write(b, off, len);
+            return false;
+        }
+        int written = 0;
+        int i = 0;
+        while (i < len) {
+            if (longest[i] > 0) {
+                out.write(b, off + written, i - written);
+                out.write(replacement);
+                i += longest[i];
+                written = i;
+            } else {
+                i++;
+            }
+        }
+        out.write(b, off + written, len - written);
+        return true;
+    }
+
+    /**
+     * Creates a masker for a stream of bytes.
+     * Only valid when {@link #getCharset} is set.
+     * @param replacement what to substitute for each occurrence, in the same encoding
+     * @param out where to write the result
+     * @return a new masker, which is not thread-safe
+     */
+    public @Nonnull StreamMasker newStreamMasker(@Nonnull byte[] replacement, @Nonnull OutputStream out) {
+        return new StreamMasker(replacement, out);
+    }
+
+    /**
+     * Replaces secrets in a stream of bytes, without waiting for the end of a line.
+     * All bytes are passed along as soon as they are known not to be part of a secret,
+     * so at most {@link #getMaxLength} bytes are held back, however long a line may be.
+     * The result is the same as {@link #writeMasked} on the whole stream, except that a secret interrupted by
+     * {@link #finish} is not recognized.
+     */
+    public final class StreamMasker {
+
+        private final byte[] replacement;
+        private final OutputStream out;
+        /** Automaton state after all bytes received so far. */
+        private int state;
+        /** Bytes received but not yet written, since they might begin a secret. */
+        private final byte[] carry = new byte[maxLength];
+        /** Longest secret found so far starting at each position in {@link #carry}. */
+        private final int[] carryLongest = new int[maxLength];
+        private int carryLen;
+
+        StreamMasker(byte[] replacement, OutputStream out) {
+            this.replacement = replacement;
+            this.out = out;
+        }
+
+        /** Number of bytes currently held back. */
+        public int pending() {
+            return carryLen;
+        }
+
+        /**
+         * Scans some more bytes, writing out whatever can be decided.
+         */
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            // Positions below are relative to the start of the carry, which the new bytes follow.
+            int total = carryLen + len;
+            int[] longest = null;
+            for (int i = 0; i < carryLen; i++) {
+                if (carryLongest[i] > 0) {
+                    longest = new int[total];
+                    System.arraycopy(carryLongest, 0, longest, 0, carryLen);
+                    break;
+                }
+            }
+            int s = state;
+            for (int i = 0; i < len; i++) {
+                s = step(s, b[off + i] & 0xFF);
+                for (int t = output[s] > 0 ? s : dictionary[s]; t != -1; t = dictionary[t]) {
+                    int start = carryLen + i - output[t] + 1;
+                    if (start < 0) {
+                        continue; // overlaps a secret already replaced
+                    }
+                    if (longest == null) {
+                        longest = new int[total];
+                    }
+                    longest[start] = Math.max(longest[start], output[t]);
+                }
+            }
+            state = s;
+            // Nothing before this can be the start of a secret not yet seen in full.
+            drain(b, off, total, longest, Math.max(0, total - depth[s]));
+        }
+
+        /**
+         * Writes out anything held back, as at the end of the stream.
+         */
+        public void finish() throws IOException {
+            boolean matched = false;
+            for (int i = 0; i < carryLen; i++) {
+                matched |= carryLongest[i] > 0;
+            }
+            drain(null, 0, carryLen, matched ? Arrays.copyOf(carryLongest, carryLen) : null, carryLen);
+            state = 0;
+        }
+
+        /**
+         * Writes out everything decided before a boundary, and carries over the rest.
+         * @param b new bytes following {@link #carry}
+         * @param off offset of the new bytes
+         * @param total number of bytes in {@link #carry} plus new bytes
+         * @param longest longest secret starting at each position, or null if none
+         * @param boundary position before which all secrets are known
+         */
+        private void drain(byte[] b, int off, int total, int[] longest, int boundary) throws IOException {
+            int cursor = 0;
+            int run = 0;
+            if (longest == null) {
+                cursor = boundary;
+            } else {
+                while (cursor < boundary) {
+                    if (longest[cursor] > 0) {
+                        writeRange(b, off, run, cursor);
+                        out.write(replacement);
+                        cursor += longest[cursor];
+                        run = cursor;
+                    } else {
+                        cursor++;
+                    }
+                }
+            }
+            writeRange(b, off, run, Math.min(cursor, total));
+            int remaining = Math.max(0, total - cursor);
+            for (int i = 0; i < remaining; i++) {
+                int pos = cursor + i;
+                carry[i] = pos < carryLen ? carry[pos] : b[off + pos - carryLen];
+                carryLongest[i] = longest != null ? longest[pos] : 0;
+            }
+            carryLen = remaining;
+        }
+
+        private void writeRange(byte[] b, int off, int from, int to) throws IOException {
+            if (from < carryLen) {
+                int end = Math.min(to, carryLen);
+                if (end > from) {
+                    out.write(carry, from, end - from);
+                }
+                from = carryLen;
+            }
+            if (to > from) {
+                out.write(b, off + from - carryLen, to - from);
+            }
+        }
+
+    }
+
+}
@@ -1,11 +1,27 @@
 package org.jenkinsci.plugins.credentialsbinding.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
+import org.apache.commons.io.input.CountingInputStream;
 import org.jenkinsci.plugins.credentialsbinding.BindingDescriptor;
+import org.jenkinsci.plugins.credentialsbinding.BindingMetrics;
 import org.jenkinsci.plugins.credentialsbinding.MultiBinding.Unbinder;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -14,7 +30,10 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.slaves.WorkspaceList;
+import jenkins.MasterToSlaveFileCallable;
 
 /**
  * Convenience class for creating a secure temporary directory dedicated to writing credentials file(s), and getting a
@@ -25,9 +44,15 @@ public class UnbindableDir {
     private final FilePath dirPath;
     private final Unbinder unbinder;
 
-    private UnbindableDir(FilePath dirPath) {
+    private static final ThreadLocal<Batch> BATCH = new ThreadLocal<>();
+
+    /**
+     * @param dirPath the directory
+     * @param dirName its path relative to {@link #secretsDir}
+     */
+    private UnbindableDir(FilePath dirPath, String dirName) {
         this.dirPath = dirPath;
-        this.unbinder = new UnbinderImpl(dirPath.getName());
+        this.unbinder = new UnbinderImpl(dirName);
     }
 
     public Unbinder getUnbinder() {
@@ -49,13 +74,368 @@ public class UnbindableDir {
      */
     public static UnbindableDir create(@Nonnull FilePath workspace)
             throws IOException, InterruptedException {
-        final FilePath secrets = secretsDir(workspace);
+        return create(workspace, Collections.<Entry>emptyList());
+    }
+
+    /**
+     * Like {@link #create(FilePath)}, but also writes some files into the new directory.
+     * Everything is done in a single call to the agent, or deferred to {@link Batch#flush} if one is in progress.
+     * @param workspace The workspace, can't be null (temporary dirs are created next to it)
+     * @param entries what to write; use {@link #getDirPath} and {@link Entry#getName} to find the resulting paths
+     */
+    public static UnbindableDir create(@Nonnull FilePath workspace, @Nonnull List<Entry> entries)
+            throws IOException, InterruptedException {
+        Batch batch = BATCH.get();
+        if (batch != null && batch.workspace.equals(workspace)) {
+            return batch.add(entries);
+        }
         final String dirName = UUID.randomUUID().toString();
-        final FilePath dir = secrets.child(dirName);
-        dir.mkdirs();
-        secrets.chmod(0700);
-        dir.chmod(0700);
-        return new UnbindableDir(dir);
+        final FilePath dir = secretsDir(workspace).child(dirName);
+        Map<String, List<Entry>> contents = new LinkedHashMap<>();
+        contents.put("", new ArrayList<>(entries));
+        act(dir, create(workspace, contents));
+        return new UnbindableDir(dir, dirName);
+    }
+
+    /**
+     * Collects the {@link UnbindableDir}s created by the current thread for a given workspace, placing them all in
+     * one parent directory, and creates them along with their entries in a single call to the agent.
+     * Directories with no entries are still created right away, since the caller presumably means to write into them.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Batch implements AutoCloseable {
+
+        private final FilePath workspace;
+        private final String name = UUID.randomUUID().toString();
+        private final Map<String, List<Entry>> pending = new LinkedHashMap<>();
+        private boolean used;
+
+        private Batch(FilePath workspace) {
+            this.workspace = workspace;
+        }
+
+        /**
+         * Starts batching calls from this thread.
+         * @param workspace the workspace passed to {@link #create(FilePath, List)}
+         */
+        public static Batch start(@Nonnull FilePath workspace) {
+            Batch batch = new Batch(workspace);
+            BATCH.set(batch);
+            return batch;
+        }
+
+        private UnbindableDir add(List<Entry> entries) throws IOException, InterruptedException {
+            final String dirName = UUID.randomUUID().toString();
+            pending.put(dirName, new ArrayList<>(entries));
+            used = true;
+            if (entries.isEmpty()) {
+                flush();
+            }
+            return new UnbindableDir(root().child(dirName), name + "/" + dirName);
+        }
+
+        private FilePath root() {
+            return secretsDir(workspace).child(name);
+        }
+
+        /**
+         * Creates whatever has been collected so far.
+         */
+        public void flush() throws IOException, InterruptedException {
+            if (!pending.isEmpty()) {
+                act(root(), create(workspace, pending));
+                pending.clear();
+            }
+        }
+
+        /**
+         * Deletes the parent directory.
+         * @return an unbinder, or null if no directories were created
+         */
+        public @CheckForNull Unbinder getUnbinder() {
+            return used ? new UnbinderImpl(name) : null;
+        }
+
+        /**
+         * Stops batching, discarding anything not yet {@linkplain #flush flushed}.
+         */
+        @Override public void close() {
+            if (BATCH.get() == this) {
+                BATCH.remove();
+            }
+        }
+
+    }
+
+    /**
+     * Something to write into a new {@link UnbindableDir}.
+     * Content given as a stream is sent to the agent as it is written, so it need not fit in memory on either side.
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final byte[] content;
+        /** Set instead of {@link #content}; read, and closed, once written. */
+        private final InputStream stream;
+        private final boolean zip;
+        /** Set if the content may be kept in the {@link SecretFileStore}. */
+        private final String storeKey;
+
+        private Entry(String name, byte[] content, InputStream stream, boolean zip, String storeKey) {
+            this.name = name;
+            this.content = content;
+            this.stream = stream;
+            this.zip = zip;
+            this.storeKey = storeKey;
+        }
+
+        /**
+         * A file, readable only by its owner.
+         * @param name a simple file name
+         * @param content the file contents
+         */
+        public static Entry file(@Nonnull String name, @Nonnull byte[] content) {
+            return new Entry(name, content, null, false, null);
+        }
+
+        /**
+         * Like {@link #file(String, byte[])} but streaming the contents.
+         * @param content the file contents, which will be closed once written
+         */
+        public static Entry file(@Nonnull String name, @Nonnull InputStream content) {
+            return new Entry(name, null, content, false, null);
+        }
+
+        /**
+         * A directory, accessible only to its owner, into which a ZIP archive is extracted.
+         * @param name a simple directory name
+         * @param content the archive
+         */
+        public static Entry zip(@Nonnull String name, @Nonnull byte[] content) {
+            return new Entry(name, content, null, true, null);
+        }
+
+        /**
+         * Like {@link #zip(String, byte[])} but streaming the archive.
+         * @param content the archive, which will be closed once extracted
+         */
+        public static Entry zip(@Nonnull String name, @Nonnull InputStream content) {
+            return new Entry(name, null, content, true, null);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Lets a file, or the tree extracted from an archive, be copied from the agent's {@link SecretFileStore},
+         * if {@linkplain SecretFileStore#FILES enabled} (or {@linkplain SecretFileStore#ZIP for archives}),
+         * and its content sent only if the store does not have it yet.
+         * @param credentialsId the credentials the content came from
+         * @param digest from {@link SecretFileStore#digest} of the content
+         */
+        Entry reusable(@Nonnull String credentialsId, @Nonnull String digest) {
+            if (!storable(zip)) {
+                return this;
+            }
+            return new Entry(name, content, stream, zip, SecretFileStore.key(credentialsId, digest));
+        }
+
+        private static boolean storable(boolean zip) {
+            return zip ? SecretFileStore.ZIP : SecretFileStore.FILES;
+        }
+
+        /**
+         * Like {@link #reusable(String, String)} for content given as bytes, computing the digest.
+         */
+        Entry reusable(@Nonnull String credentialsId) throws IOException {
+            if (!storable(zip) || content == null) {
+                return this;
+            }
+            return reusable(credentialsId, SecretFileStore.digest(new ByteArrayInputStream(content)));
+        }
+
+        private Payload toPayload(boolean useStore) {
+            if (useStore && storeKey != null) {
+                // Only read, and so sent, if the store does not have it.
+                InputStream in = stream != null ? stream : new ByteArrayInputStream(content);
+                return new Payload(name, null, new RemoteInputStream(in, RemoteInputStream.Flag.NOT_GREEDY), zip, storeKey);
+            }
+            return new Payload(name, content, stream != null ? new RemoteInputStream(stream, RemoteInputStream.Flag.GREEDY) : null, zip, null);
+        }
+
+    }
+
+    /** What is actually sent for an {@link Entry}. */
+    private static final class Payload implements Serializable {
+
+        private static final long serialVersionUID = 1;
+
+        private final String name;
+        private final byte[] content;
+        private final RemoteInputStream stream;
+        private final boolean zip;
+        private final String storeKey;
+
+        Payload(String name, byte[] content, RemoteInputStream stream, boolean zip, String storeKey) {
+            this.name = name;
+            this.content = content;
+            this.stream = stream;
+            this.zip = zip;
+            this.storeKey = storeKey;
+        }
+
+        InputStream open() {
+            return stream != null ? stream : new ByteArrayInputStream(content);
+        }
+
+    }
+
+    /** Prepares to create directories with some entries, for a given workspace. */
+    private static Create create(FilePath workspace, Map<String, List<Entry>> contents) {
+        FilePath store = SecretFileStore.FILES || SecretFileStore.ZIP ? SecretFileStore.of(workspace) : null;
+        LinkedHashMap<String, List<Payload>> payloads = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Entry>> content : contents.entrySet()) {
+            List<Payload> forDir = new ArrayList<>();
+            for (Entry entry : content.getValue()) {
+                forDir.add(entry.toPayload(store != null));
+            }
+            payloads.put(content.getKey(), forDir);
+        }
+        return new Create(payloads, store != null ? store.getRemote() : null, SecretFileStore.MAX_UNUSED);
+    }
+
+    /** Runs {@link Create}, recording it in {@link BindingMetrics}. */
+    private static void act(FilePath dir, Create create) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long bytes = dir.act(create);
+        BindingMetrics.Sample.io(System.nanoTime() - start, bytes);
+    }
+
+    /**
+     * Creates directories with secure permissions, then writes entries into them.
+     * Keys are paths relative to the directory acted on; the empty path denotes that directory itself.
+     * Returns the number of bytes received.
+     */
+    private static final class Create extends MasterToSlaveFileCallable<Long> {
+
+        private static final long serialVersionUID = 1;
+
+        private static final long CHUNK_SIZE = 1 << 20;
+
+        private final LinkedHashMap<String, List<Payload>> contents;
+        /** {@link SecretFileStore} directory, if in use. */
+        private final String store;
+        private final int maxUnused;
+
+        Create(LinkedHashMap<String, List<Payload>> contents, String store, int maxUnused) {
+            this.contents = contents;
+            this.store = store;
+            this.maxUnused = maxUnused;
+        }
+
+        @Override public Long invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+            long bytes = 0;
+            FilePath local = new FilePath(root);
+            local.mkdirs();
+            local.getParent().chmod(0700);
+            local.chmod(0700);
+            for (Map.Entry<String, List<Payload>> content : contents.entrySet()) {
+                File dir = root;
+                if (!content.getKey().isEmpty()) {
+                    dir = new File(root, content.getKey());
+                    FilePath d = new FilePath(dir);
+                    d.mkdirs();
+                    d.chmod(0700);
+                }
+                for (Payload entry : content.getValue()) {
+                    File file = new File(dir, entry.name);
+                    FilePath target = new FilePath(file);
+                    try (CountingInputStream in = new CountingInputStream(entry.open())) {
+                        if (entry.storeKey != null && store != null) {
+                            SecretFileStore.place(new File(store), entry.storeKey, in, file, entry.zip, maxUnused);
+                        } else if (entry.zip) {
+                            target.unzipFrom(in);
+                            target.chmod(0700); // note: it's a directory
+                        } else {
+                            write(in, file);
+                            target.chmod(0400);
+                        }
+                        bytes += in.getByteCount();
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        /** Copies a stream to a file a chunk at a time, without an intermediate buffer where possible. */
+        private static void write(InputStream in, File file) throws IOException {
+            try (ReadableByteChannel src = Channels.newChannel(in);
+                 FileChannel dst = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = 0;
+                long transferred;
+                while ((transferred = dst.transferFrom(src, position, CHUNK_SIZE)) > 0) {
+                    position += transferred;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Like calling {@link Unbinder#unbind} on each of these, but in a single call to the agent.
+     * @param workspace the workspace passed to {@link #create}
+     */
+    static void unbindAll(@Nonnull FilePath workspace, @Nonnull List<UnbinderImpl> unbinders) throws IOException, InterruptedException {
+        List<String> dirNames = new ArrayList<>();
+        for (UnbinderImpl unbinder : unbinders) {
+            dirNames.add(unbinder.dirName);
+        }
+        secretsDir(workspace).act(new Delete(dirNames));
+    }
+
+    /** Deletes directories, skipping any inside another being deleted. */
+    private static final class Delete extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1;
+
+        private final ArrayList<String> dirNames;
+
+        Delete(List<String> dirNames) {
+            this.dirNames = new ArrayList<>(dirNames);
+        }
+
+        @Override public Void invoke(File secrets, VirtualChannel channel) throws IOException, InterruptedException {
+            IOException failure = null;
+            for (String dirName : dirNames) {
+                if (isInsideAnother(dirName)) {
+                    continue;
+                }
+                try {
+                    new FilePath(new File(secrets, dirName)).deleteRecursive();
+                } catch (IOException x) {
+                    if (failure == null) {
+                        failure = x;
+                    } else {
+                        failure.addSuppressed(x);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+
+        private boolean isInsideAnother(String dirName) {
+            for (String other : dirNames) {
+                if (dirName.startsWith(other + "/")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
     }
 
     private static FilePath secretsDir(FilePath workspace) {
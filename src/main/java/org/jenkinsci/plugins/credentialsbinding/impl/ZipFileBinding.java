@@ -54,6 +54,14 @@ public class ZipFileBinding extends AbstractOnDiskBinding<FileCredentials> {
         return FileCredentials.class;
     }
 
+    @Override protected final UnbindableDir.Entry entry(FileCredentials credentials) throws IOException {
+        UnbindableDir.Entry entry = UnbindableDir.Entry.zip(credentials.getFileName(), credentials.getContent());
+        if (SecretFileStore.ZIP) {
+            entry = entry.reusable(credentials.getId(), SecretFileStore.digest(credentials.getContent()));
+        }
+        return entry;
+    }
+
     @Override protected final FilePath write(FileCredentials credentials, FilePath dir) throws IOException, InterruptedException {
         FilePath secret = dir.child(credentials.getFileName());
         secret.unzipFrom(credentials.getContent());
@@ -33,11 +33,18 @@ import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
 
 import hudson.model.Fingerprint;
 import hudson.model.User;
+import jenkins.security.MasterToSlaveCallable;
 import jenkins.security.QueueItemAuthenticatorConfiguration;
 
+import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Functions;
+import hudson.Launcher;
+import hudson.console.ConsoleLogFilter;
+import hudson.model.FreeStyleBuild;
 import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.model.Result;
 import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
 import hudson.slaves.DumbSlave;
@@ -46,13 +53,21 @@ import hudson.slaves.RetentionStrategy;
 import hudson.slaves.WorkspaceList;
 import hudson.util.Secret;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
@@ -60,7 +75,10 @@ import org.apache.commons.io.FileUtils;
 import org.jenkinsci.plugins.authorizeproject.AuthorizeProjectProperty;
 import org.jenkinsci.plugins.authorizeproject.ProjectQueueItemAuthenticator;
 import org.jenkinsci.plugins.authorizeproject.strategy.SpecificUsersAuthorizationStrategy;
+import org.jenkinsci.plugins.credentialsbinding.BindingDescriptor;
+import org.jenkinsci.plugins.credentialsbinding.BindingMetrics;
 import org.jenkinsci.plugins.credentialsbinding.MultiBinding;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.jenkinsci.plugins.plaincredentials.impl.FileCredentialsImpl;
 import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
@@ -73,10 +91,13 @@ import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
 import org.jenkinsci.plugins.workflow.steps.StepConfigTester;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.*;
@@ -88,6 +109,7 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.runners.model.Statement;
 import org.jvnet.hudson.test.BuildWatcher;
 import org.jvnet.hudson.test.Issue;
+import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.RestartableJenkinsRule;
 import org.jvnet.hudson.test.TestExtension;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -294,6 +316,119 @@ public class BindingStepTest {
         });
     }
 
+    @Test public void onDiskBindingsShareOneDirectory() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                for (String id : new String[] {"one", "two"}) {
+                    CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(),
+                            new FileCredentialsImpl(CredentialsScope.GLOBAL, id, null, id + ".txt", SecretBytes.fromBytes(id.getBytes())));
+                }
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "node {\n"
+                        + "  withCredentials([file(variable: 'ONE', credentialsId: 'one'), file(variable: 'TWO', credentialsId: 'two')]) {\n"
+                        + "    semaphore 'shared'\n"
+                        + "  }\n"
+                        + "}", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("shared/1", b);
+                FilePath secretFiles = tempDir(story.j.jenkins.getWorkspaceFor(p)).child("secretFiles");
+                List<FilePath> dirs = secretFiles.listDirectories();
+                assertEquals(1, dirs.size());
+                assertEquals(2, dirs.get(0).listDirectories().size());
+                SemaphoreStep.success("shared/1", null);
+                story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                assertEquals(Collections.emptyList(), secretFiles.list());
+            }
+        });
+    }
+
+    @Test public void unbindingFailures() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                FreeStyleBuild b = story.j.buildAndAssertSuccess(story.j.createFreeStyleProject());
+                FilePath ws = new FilePath(tmp.newFolder());
+                UnbindableDir dir = UnbindableDir.create(ws);
+                assertTrue(dir.getDirPath().isDirectory());
+                // Unbinders of other plugins may rely on their order, so however slow the first is, it runs before the second.
+                List<String> ran = Collections.synchronizedList(new ArrayList<>());
+                List<MultiBinding.Unbinder> unbinders = Arrays.asList(new FailingUnbinder("first", 500, ran), dir.getUnbinder(), new FailingUnbinder("second", 0, ran));
+                try {
+                    BindingStep.unbindAll(unbinders, b, ws, null, TaskListener.NULL);
+                    fail();
+                } catch (IOException x) {
+                    assertEquals("first", x.getMessage());
+                    assertEquals(1, x.getSuppressed().length);
+                    assertEquals("second", x.getSuppressed()[0].getMessage());
+                }
+                String thread = Thread.currentThread().getName();
+                assertEquals(Arrays.asList("first on " + thread, "second on " + thread), ran);
+                assertFalse(dir.getDirPath().exists());
+            }
+        });
+    }
+    private static final class FailingUnbinder implements MultiBinding.Unbinder {
+        private static final long serialVersionUID = 1;
+        private final String message;
+        private final long delay;
+        private final transient List<String> ran;
+        FailingUnbinder(String message, long delay, List<String> ran) {
+            this.message = message;
+            this.delay = delay;
+            this.ran = ran;
+        }
+        @Override public void unbind(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+            Thread.sleep(delay);
+            ran.add(message + " on " + Thread.currentThread().getName());
+            throw new IOException(message);
+        }
+    }
+
+    @Test public void metrics() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(),
+                        new FileCredentialsImpl(CredentialsScope.GLOBAL, "file", null, "file.txt", SecretBytes.fromBytes("0123456789".getBytes())));
+                CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(),
+                        new StringCredentialsImpl(CredentialsScope.GLOBAL, "string", null, Secret.fromString("s3cr3t")));
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "node {\n"
+                        + "  withCredentials([file(variable: 'FILE', credentialsId: 'file'), string(variable: 'STRING', credentialsId: 'string')]) {\n"
+                        + "    echo 'inside'\n"
+                        + "  }\n"
+                        + "}", true));
+                BindingStep.LOG_METRICS = true;
+                try {
+                    WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                    story.j.assertLogContains("Bound credentials in ", b);
+                    story.j.assertLogContains("Unbound credentials in ", b);
+                } finally {
+                    BindingStep.LOG_METRICS = false;
+                }
+                RecordingMetrics metrics = story.j.jenkins.getExtensionList(BindingMetrics.class).get(RecordingMetrics.class);
+                assertEquals("[FileBinding, StringBinding]", metrics.bound.toString());
+                assertEquals(10, metrics.shared.getBytesWritten());
+                assertEquals(1, metrics.unbound);
+            }
+        });
+    }
+
+    @TestExtension("metrics") public static final class RecordingMetrics extends BindingMetrics {
+        final List<String> bound = new ArrayList<>();
+        final BindingMetrics.Sample shared = new BindingMetrics.Sample();
+        int unbound;
+        @Override public synchronized void onBind(Run<?,?> build, MultiBinding<?> binding, BindingMetrics.Sample sample) {
+            bound.add(binding.getClass().getSimpleName());
+        }
+        @Override public synchronized void onShared(Run<?,?> build, BindingMetrics.Sample sample) {
+            shared.add(sample);
+        }
+        @Override public synchronized void onUnbind(Run<?,?> build, BindingMetrics.Sample sample) {
+            unbound++;
+        }
+    }
+
     // TODO 1.652 use WorkspaceList.tempDir
     private static FilePath tempDir(FilePath ws) {
         return ws.sibling(ws.getName() + System.getProperty(WorkspaceList.class.getName(), "@") + "tmp");
@@ -345,6 +480,249 @@ public class BindingStepTest {
         });
     }
 
+    @Test public void coalescedOutputFlushedAtEndOfBlock() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                int size = CoalescingOutputStream.SIZE;
+                long delay = CoalescingOutputStream.DELAY;
+                CoalescingOutputStream.SIZE = 8192;
+                CoalescingOutputStream.DELAY = TimeUnit.HOURS.toMillis(1);
+                try {
+                    assertFlushedAtEndOfBlock();
+                } finally {
+                    CoalescingOutputStream.SIZE = size;
+                    CoalescingOutputStream.DELAY = delay;
+                }
+            }
+        });
+    }
+
+    @Test public void pipelinedOutputFlushedAtEndOfBlock() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                boolean enabled = PipelinedOutputStream.ENABLED;
+                PipelinedOutputStream.ENABLED = true;
+                try {
+                    assertFlushedAtEndOfBlock();
+                } finally {
+                    PipelinedOutputStream.ENABLED = enabled;
+                }
+            }
+        });
+    }
+
+    private void assertFlushedAtEndOfBlock() throws Exception {
+        CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(), new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", "sample", Secret.fromString("s3cr3t")));
+        WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(""
+                + "withCredentials([string(credentialsId: 'creds', variable: 'SECRET')]) {\n"
+                + "  echo \"inside $SECRET\"\n"
+                + "}\n"
+                + "echo 'after the block'", true));
+        WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        String log = JenkinsRule.getLog(b);
+        assertThat(log, containsString("inside ****"));
+        assertThat(log.indexOf("inside ****"), lessThan(log.indexOf("after the block")));
+    }
+
+    @Test public void failLazily() {
+        final String secret = "s3cr3t";
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(), new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", "sample", Secret.fromString(secret)));
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "node {\n"
+                        + "  withCredentials(failLazily: true, bindings: [string(credentialsId: 'missing', variable: 'UNUSED')]) {\n"
+                        + "    echo 'never bound'\n"
+                        + "    try {\n"
+                        + "      if (isUnix()) {sh 'true'} else {bat 'rem'}\n"
+                        + "    } catch (e) {\n"
+                        + "      echo \"failed: ${e.message}\"\n"
+                        + "    }\n"
+                        + "  }\n"
+                        + "  withCredentials(failLazily: true, bindings: [string(credentialsId: 'creds', variable: 'SECRET')]) {\n"
+                        + "    semaphore 'lazy'\n"
+                        + "    if (isUnix()) {sh 'echo $SECRET > oops'} else {bat 'echo %SECRET% > oops'}\n"
+                        + "  }\n"
+                        + "}", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("lazy/1", b);
+                story.j.assertLogContains("never bound", b);
+                story.j.assertLogContains("failed: Could not find credentials entry with ID 'missing'", b);
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.getItemByFullName("p", WorkflowJob.class);
+                WorkflowRun b = p.getBuildByNumber(1);
+                SemaphoreStep.success("lazy/1", null);
+                story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                story.j.assertLogNotContains(secret, b);
+                story.j.assertLogContains("echo ****", b);
+                assertEquals(secret, story.j.jenkins.getWorkspaceFor(p).child("oops").readToString().trim());
+            }
+        });
+    }
+
+    @Test public void bindingInParallel() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(), new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", "sample", Secret.fromString("s3cr3t")));
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "parallel slow: {\n"
+                        + "  withCredentials([[$class: 'BlockingBinding', credentialsId: 'creds']]) {\n"
+                        + "    echo \"inside: ${env.BLOCKED}\"\n"
+                        + "  }\n"
+                        + "}, fast: {\n"
+                        + "  semaphore 'fast'\n"
+                        + "  echo 'fast done'\n"
+                        + "}", true));
+                BlockingBinding.binding = new CountDownLatch(1);
+                BlockingBinding.release = new CountDownLatch(1);
+                try {
+                    WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                    assertTrue(BlockingBinding.binding.await(1, TimeUnit.MINUTES));
+                    // While the other branch is still binding, this one goes on.
+                    SemaphoreStep.success("fast/1", null);
+                    story.j.waitForMessage("fast done", b);
+                    BlockingBinding.release.countDown();
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                    story.j.assertLogContains("inside: ****", b);
+                    story.j.assertLogNotContains("s3cr3t", b);
+                } finally {
+                    BlockingBinding.release.countDown();
+                }
+            }
+        });
+    }
+    public static final class BlockingBinding extends MultiBinding<StringCredentials> {
+        static CountDownLatch binding, release;
+        @DataBoundConstructor public BlockingBinding(String credentialsId) {
+            super(credentialsId);
+        }
+        @Override protected Class<StringCredentials> type() {
+            return StringCredentials.class;
+        }
+        @Override public Set<String> variables() {
+            return Collections.singleton("BLOCKED");
+        }
+        @Override public MultiEnvironment bind(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+            binding.countDown();
+            release.await();
+            return new MultiEnvironment(Collections.singletonMap("BLOCKED", getCredentials(build).getSecret().getPlainText()));
+        }
+        @TestExtension("bindingInParallel") public static final class DescriptorImpl extends BindingDescriptor<StringCredentials> {
+            @Override protected Class<StringCredentials> type() {
+                return StringCredentials.class;
+            }
+            @Override public boolean requiresWorkspace() {
+                return false;
+            }
+            @Override public String getDisplayName() {
+                return "Blocking";
+            }
+        }
+    }
+
+    @Test public void nestedMasking() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                for (String id : new String[] {"one", "two", "three"}) {
+                    CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(),
+                            new StringCredentialsImpl(CredentialsScope.GLOBAL, id, null, Secret.fromString("s3cr3t-" + id)));
+                }
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "node {\n"
+                        + "  withCredentials([string(credentialsId: 'one', variable: 'ONE')]) {\n"
+                        + "    withCredentials([string(credentialsId: 'two', variable: 'TWO')]) {\n"
+                        + "      withCredentials([string(credentialsId: 'three', variable: 'THREE')]) {\n"
+                        + "        consoleLogFilter()\n"
+                        + "        if (isUnix()) {sh 'echo $ONE $TWO $THREE'} else {bat 'echo %ONE% %TWO% %THREE%'}\n"
+                        + "      }\n"
+                        + "    }\n"
+                        + "  }\n"
+                        + "}", true));
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("filter: Filter", b);
+                story.j.assertLogNotContains("s3cr3t", b);
+                story.j.assertLogContains("**** **** ****", b);
+            }
+        });
+    }
+    public static class ConsoleLogFilterStep extends AbstractStepImpl {
+        @DataBoundConstructor public ConsoleLogFilterStep() {}
+        @TestExtension("nestedMasking") public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+            public DescriptorImpl() {super(Execution.class);}
+            @Override public String getFunctionName() {return "consoleLogFilter";}
+        }
+        public static class Execution extends AbstractSynchronousStepExecution<Void> {
+            @StepContextParameter private transient ConsoleLogFilter filter;
+            @StepContextParameter private transient TaskListener listener;
+            @Override protected Void run() throws Exception {
+                listener.getLogger().println("filter: " + filter.getClass().getSimpleName());
+                return null;
+            }
+        }
+    }
+
+    @Test public void maskingOnAgent() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                DumbSlave agent = story.j.createOnlineSlave();
+                ConsoleLogFilter filter = new BindingStep.Filter(Collections.singleton("s3cr3t"), "UTF-8");
+                assertEquals("x **** y\n", agent.getChannel().call(new MaskOnAgent(filter, "x s3cr3t y\n")));
+                // The filter of a block, too, must carry its secrets, not the state of the step.
+                CredentialsProvider.lookupStores(story.j.jenkins).iterator().next().addCredentials(Domain.global(), new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", "sample", Secret.fromString("s3cr3t")));
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "node('" + agent.getNodeName() + "') {\n"
+                        + "  withCredentials([string(credentialsId: 'creds', variable: 'SECRET')]) {\n"
+                        + "    maskOnAgent()\n"
+                        + "  }\n"
+                        + "}", true));
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("masked on agent", b);
+                story.j.assertLogNotContains("not masked", b);
+            }
+        });
+    }
+    public static class MaskOnAgentStep extends AbstractStepImpl {
+        @DataBoundConstructor public MaskOnAgentStep() {}
+        @TestExtension("maskingOnAgent") public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+            public DescriptorImpl() {super(Execution.class);}
+            @Override public String getFunctionName() {return "maskOnAgent";}
+        }
+        public static class Execution extends AbstractSynchronousStepExecution<Void> {
+            @StepContextParameter private transient ConsoleLogFilter filter;
+            @StepContextParameter private transient EnvVars env;
+            @StepContextParameter private transient FilePath workspace;
+            @StepContextParameter private transient TaskListener listener;
+            @Override protected Void run() throws Exception {
+                String masked = workspace.getChannel().call(new MaskOnAgent(filter, "x " + env.get("SECRET") + " y\n"));
+                listener.getLogger().println(masked.equals("x **** y\n") ? "masked on agent" : "not masked on agent");
+                return null;
+            }
+        }
+    }
+    private static final class MaskOnAgent extends MasterToSlaveCallable<String, Exception> {
+        private final ConsoleLogFilter filter;
+        private final String text;
+        MaskOnAgent(ConsoleLogFilter filter, String text) {
+            this.filter = filter;
+            this.text = text;
+        }
+        @Override public String call() throws Exception {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (OutputStream os = filter.decorateLogger(null, baos)) {
+                os.write(text.getBytes(StandardCharsets.UTF_8));
+            }
+            return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
     @Issue("JENKINS-30326")
     @Test
     public void testGlobalBindingWithAuthorization() {
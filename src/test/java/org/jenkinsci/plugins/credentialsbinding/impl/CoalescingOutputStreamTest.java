@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoalescingOutputStreamTest {
+
+    @Test public void coalesces() throws Exception {
+        Random r = new Random(42);
+        for (int iteration = 0; iteration < 1000; iteration++) {
+            int size = 1 + r.nextInt(64);
+            CountingStream sink = new CountingStream();
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            try (OutputStream out = new CoalescingOutputStream(sink, size, 60000)) {
+                for (int i = 0; i < 100; i++) {
+                    byte[] b = new byte[r.nextInt(80)];
+                    r.nextBytes(b);
+                    if (b.length == 1) {
+                        out.write(b[0]);
+                    } else {
+                        out.write(b, 0, b.length);
+                    }
+                    expected.write(b);
+                }
+            }
+            assertArrayEquals(expected.toByteArray(), sink.toByteArray());
+            for (int len : sink.writes) {
+                assertTrue(len > 0);
+            }
+        }
+    }
+
+    @Test public void flushes() throws Exception {
+        CountingStream sink = new CountingStream();
+        OutputStream out = new CoalescingOutputStream(sink, 8192, 60000);
+        for (int i = 0; i < 100; i++) {
+            out.write("line\n".getBytes("UTF-8"));
+        }
+        assertEquals(0, sink.size());
+        out.flush();
+        assertEquals(500, sink.size());
+        assertEquals(1, sink.writes.size());
+    }
+
+    @Test public void flushesAfterDelay() throws Exception {
+        CountingStream sink = new CountingStream();
+        OutputStream out = new CoalescingOutputStream(sink, 8192, 10);
+        out.write("quiet build\n".getBytes("UTF-8"));
+        for (int i = 0; i < 100 && sink.size() == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("quiet build\n", sink.toString("UTF-8"));
+    }
+
+    @Test(timeout = 60000) public void blockedStreamDoesNotHoldUpOthers() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        OutputStream blocked = new CoalescingOutputStream(new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException x) {
+                    throw new IOException(x);
+                }
+            }
+        }, 8192, 10);
+        try {
+            blocked.write("stuck\n".getBytes("UTF-8"));
+            writing.await();
+            // The writer of the blocked stream carries on while its output fits in the buffer.
+            blocked.write("more\n".getBytes("UTF-8"));
+            CountingStream sink = new CountingStream();
+            OutputStream out = new CoalescingOutputStream(sink, 8192, 10);
+            out.write("other build\n".getBytes("UTF-8"));
+            while (sink.size() == 0) {
+                Thread.sleep(10);
+            }
+            assertEquals("other build\n", sink.toString("UTF-8"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test(timeout = 60000) public void timedFlushFailureReported() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        OutputStream out = new CoalescingOutputStream(new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                failed.countDown();
+                throw new IOException("log closed");
+            }
+        }, 8192, 10);
+        out.write("lost\n".getBytes("UTF-8"));
+        failed.await();
+        try {
+            for (int i = 0; i < 100; i++) {
+                out.write("next\n".getBytes("UTF-8"));
+                Thread.sleep(10);
+            }
+            fail("should have reported the failed flush");
+        } catch (IOException x) {
+            assertEquals("log closed", x.getCause().getMessage());
+        }
+    }
+
+    private static final class CountingStream extends ByteArrayOutputStream {
+        final List<Integer> writes = new ArrayList<>();
+        @Override public synchronized void write(int b) {
+            writes.add(1);
+            super.write(b);
+        }
+        @Override public synchronized void write(byte[] b, int off, int len) {
+            writes.add(len);
+            super.write(b, off, len);
+        }
+        @Override public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.IdCredentials;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Fingerprint;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.util.Secret;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+public class CredentialsCacheTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void reusedUntilCredentialsChange() throws Exception {
+        CredentialsStore store = CredentialsProvider.lookupStores(r.jenkins).iterator().next();
+        StringCredentialsImpl c = new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, Secret.fromString("s3cr3t"));
+        store.addCredentials(Domain.global(), c);
+        FreeStyleBuild b = r.buildAndAssertSuccess(r.createFreeStyleProject());
+        IdCredentials found = CredentialsCache.findCredentialById("creds", IdCredentials.class, b);
+        assertNotNull(found);
+        assertSame(found, CredentialsCache.findCredentialById("creds", IdCredentials.class, b));
+        assertNull(CredentialsCache.findCredentialById("missing", IdCredentials.class, b));
+        store.updateCredentials(Domain.global(), c, new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, Secret.fromString("n3w")));
+        found = CredentialsCache.findCredentialById("creds", IdCredentials.class, b);
+        assertEquals("n3w", ((StringCredentials) found).getSecret().getPlainText());
+    }
+
+    @Test public void keptWhenOtherConfigurationIsSaved() throws Exception {
+        SystemCredentialsProvider provider = SystemCredentialsProvider.getInstance();
+        StringCredentialsImpl c = new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, Secret.fromString("s3cr3t"));
+        provider.getCredentials().add(c);
+        provider.save();
+        FreeStyleProject p = r.createFreeStyleProject();
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        assertEquals("s3cr3t", ((StringCredentials) CredentialsCache.findCredentialById("creds", IdCredentials.class, b)).getSecret().getPlainText());
+        // Replaced without saving, so that only a fresh lookup sees the change.
+        provider.getCredentials().set(provider.getCredentials().indexOf(c), new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, Secret.fromString("n3w")));
+        Fingerprint fingerprint = CredentialsProvider.getOrCreateFingerprintOf(c);
+        assertNotNull(fingerprint);
+        fingerprint.save();
+        p.save();
+        assertEquals("s3cr3t", ((StringCredentials) CredentialsCache.findCredentialById("creds", IdCredentials.class, b)).getSecret().getPlainText());
+        provider.save();
+        assertEquals("n3w", ((StringCredentials) CredentialsCache.findCredentialById("creds", IdCredentials.class, b)).getSecret().getPlainText());
+    }
+
+    @Test public void trackedWhenBuildCompletes() throws Exception {
+        long delay = CredentialsCache.TRACK_DELAY;
+        CredentialsCache.TRACK_DELAY = TimeUnit.HOURS.toMillis(1);
+        try {
+            final StringCredentialsImpl c = new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, Secret.fromString("s3cr3t"));
+            CredentialsProvider.lookupStores(r.jenkins).iterator().next().addCredentials(Domain.global(), c);
+            FreeStyleProject p = r.createFreeStyleProject();
+            p.getBuildWrappersList().add(new SecretBuildWrapper(Arrays.asList(new StringBinding("ONE", "creds"), new StringBinding("TWO", "creds"))));
+            p.getBuildersList().add(new TestBuilder() {
+                @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException {
+                    assertNull(CredentialsProvider.getFingerprintOf(c));
+                    return true;
+                }
+            });
+            FreeStyleBuild b = r.buildAndAssertSuccess(p);
+            Fingerprint fingerprint = CredentialsProvider.getFingerprintOf(c);
+            assertNotNull(fingerprint);
+            assertTrue(fingerprint.getRangeSet(p).includes(b.getNumber()));
+        } finally {
+            CredentialsCache.TRACK_DELAY = delay;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SecretBytes;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.BaseStandardCredentials;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleProject;
+import hudson.slaves.DumbSlave;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jenkinsci.plugins.plaincredentials.FileCredentials;
+import org.jenkinsci.plugins.plaincredentials.impl.FileCredentialsImpl;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SimpleCommandLauncher;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+
+public class FileBindingTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void largeFile() throws Exception {
+        final long size = 160L << 20;
+        CredentialsProvider.lookupStores(r.jenkins).iterator().next().addCredentials(Domain.global(), new GeneratedFileCredentials("big", size));
+        // The file is bigger than the agent's heap, so it must be streamed to disk.
+        DumbSlave agent = new DumbSlave("small-heap", tmp.newFolder().getAbsolutePath(), new SimpleCommandLauncher(String.format(
+                "\"%s/bin/java\" -Xmx64m -Djava.awt.headless=true -jar \"%s\"",
+                System.getProperty("java.home"), new File(r.jenkins.getJnlpJars("slave.jar").getURL().toURI()).getAbsolutePath())));
+        r.jenkins.addNode(agent);
+        r.waitOnline(agent);
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.setAssignedNode(agent);
+        p.getBuildWrappersList().add(new SecretBuildWrapper(Collections.singletonList(new FileBinding("SECRET", "big"))));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                FilePath secret = new FilePath(build.getWorkspace().getChannel(), build.getEnvironment(listener).get("SECRET"));
+                assertEquals(size, secret.length());
+                return true;
+            }
+        });
+        r.buildAndAssertSuccess(p);
+    }
+
+    @Test public void reusedFromStore() throws Exception {
+        SecretFileStore.FILES = true;
+        try {
+            CredentialsStore store = CredentialsProvider.lookupStores(r.jenkins).iterator().next();
+            FileCredentialsImpl c = new FileCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, "secret.txt", SecretBytes.fromBytes("s3cr3t".getBytes(StandardCharsets.UTF_8)));
+            store.addCredentials(Domain.global(), c);
+            FreeStyleProject p = r.createFreeStyleProject();
+            p.getBuildWrappersList().add(new SecretBuildWrapper(Collections.singletonList(new FileBinding("SECRET", "creds"))));
+            final List<String> contents = new ArrayList<>();
+            p.getBuildersList().add(new TestBuilder() {
+                @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                    contents.add(new FilePath(build.getWorkspace().getChannel(), build.getEnvironment(listener).get("SECRET")).readToString());
+                    return true;
+                }
+            });
+            r.buildAndAssertSuccess(p);
+            r.buildAndAssertSuccess(p);
+            FilePath files = SecretFileStore.of(r.jenkins.getWorkspaceFor(p)).child("files");
+            FilePath first = files.child(SecretFileStore.key("creds", SecretFileStore.digest(c.getContent())));
+            assertTrue(first.exists());
+            FileCredentialsImpl changed = new FileCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, "secret.txt", SecretBytes.fromBytes("n3w".getBytes(StandardCharsets.UTF_8)));
+            store.updateCredentials(Domain.global(), c, changed);
+            r.buildAndAssertSuccess(p);
+            assertEquals(Arrays.asList("s3cr3t", "s3cr3t", "n3w"), contents);
+            assertFalse("older version deleted", first.exists());
+            assertTrue(files.child(SecretFileStore.key("creds", SecretFileStore.digest(changed.getContent()))).exists());
+        } finally {
+            SecretFileStore.FILES = false;
+        }
+    }
+
+    @Test public void storeUnaffectedByChanges() throws Exception {
+        SecretFileStore.FILES = true;
+        try {
+            FileCredentialsImpl c = new FileCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, "secret.txt", SecretBytes.fromBytes("s3cr3t".getBytes(StandardCharsets.UTF_8)));
+            CredentialsProvider.lookupStores(r.jenkins).iterator().next().addCredentials(Domain.global(), c);
+            FreeStyleProject p = r.createFreeStyleProject();
+            p.getBuildWrappersList().add(new SecretBuildWrapper(Collections.singletonList(new FileBinding("SECRET", "creds"))));
+            final List<String> contents = new ArrayList<>();
+            p.getBuildersList().add(new TestBuilder() {
+                @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                    FilePath secret = new FilePath(build.getWorkspace().getChannel(), build.getEnvironment(listener).get("SECRET"));
+                    contents.add(secret.readToString());
+                    // The build owns the file, so nothing stops it from doing this.
+                    secret.chmod(0600);
+                    secret.write("modified", "UTF-8");
+                    return true;
+                }
+            });
+            r.buildAndAssertSuccess(p);
+            r.buildAndAssertSuccess(p);
+            FilePath stored = SecretFileStore.of(r.jenkins.getWorkspaceFor(p)).child("files").child(SecretFileStore.key("creds", SecretFileStore.digest(c.getContent())));
+            assertEquals("s3cr3t", stored.readToString());
+            stored.chmod(0600);
+            stored.write("modified", "UTF-8");
+            r.buildAndAssertSuccess(p);
+            assertEquals(Arrays.asList("s3cr3t", "s3cr3t", "s3cr3t"), contents);
+            assertEquals("stored copy replaced", "s3cr3t", stored.readToString());
+        } finally {
+            SecretFileStore.FILES = false;
+        }
+    }
+
+    /** Content made up on the fly, so that it need not be held in memory. */
+    public static final class GeneratedFileCredentials extends BaseStandardCredentials implements FileCredentials {
+
+        private final long size;
+
+        GeneratedFileCredentials(String id, long size) {
+            super(CredentialsScope.GLOBAL, id, null);
+            this.size = size;
+        }
+
+        @Override public String getFileName() {
+            return "generated.bin";
+        }
+
+        @Override public InputStream getContent() {
+            return new InputStream() {
+                long remaining = size;
+                @Override public int read() {
+                    if (remaining == 0) {
+                        return -1;
+                    }
+                    remaining--;
+                    return 'x';
+                }
+                @Override public int read(byte[] b, int off, int len) {
+                    if (remaining == 0) {
+                        return -1;
+                    }
+                    int n = (int) Math.min(len, remaining);
+                    Arrays.fill(b, off, off + n, (byte) 'x');
+                    remaining -= n;
+                    return n;
+                }
+            };
+        }
+
+        @TestExtension public static final class DescriptorImpl extends BaseStandardCredentialsDescriptor {
+            @Override public String getDisplayName() {
+                return "Generated";
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MaskingOutputStreamTest {
+
+    @Test public void lineByLine() throws Exception {
+        // Not safe to match on bytes, so masked a line at a time.
+        Charset charset = Charset.forName("Shift_JIS");
+        Random r = new Random(42);
+        String alphabet = "ab\nc中";
+        for (int iteration = 0; iteration < 1000; iteration++) {
+            List<String> secrets = new ArrayList<>();
+            for (int i = r.nextInt(4); i >= 0; i--) {
+                secrets.add(random(r, "abc中", 1 + r.nextInt(4)));
+            }
+            SecretMatcher m = SecretMatcher.compile(secrets, charset);
+            assertNull(m.getCharset());
+            StringBuilder expected = new StringBuilder();
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            try (OutputStream out = new MaskingOutputStream(actual, charset, () -> m)) {
+                StringBuilder line = new StringBuilder();
+                for (int i = r.nextInt(20); i >= 0; i--) {
+                    // Long lines now and then, so that buffers grow.
+                    String text = random(r, alphabet, r.nextInt(10) == 0 ? LineBuffers.SIZE + r.nextInt(1000) : r.nextInt(40));
+                    out.write(text.getBytes(charset));
+                    for (char c : text.toCharArray()) {
+                        line.append(c);
+                        if (c == '\n') {
+                            expected.append(mask(m, line));
+                            line.setLength(0);
+                        }
+                    }
+                }
+                expected.append(mask(m, line));
+            }
+            assertEquals(secrets.toString(), expected.toString(), new String(actual.toByteArray(), charset));
+        }
+    }
+
+    private static String mask(SecretMatcher m, CharSequence line) {
+        String masked = m.replaceAll(line.toString(), MaskingOutputStream.MASK);
+        return masked != null ? masked : line.toString();
+    }
+
+    @Test public void onlyPooledSizeReused() {
+        byte[] pooled = LineBuffers.acquire();
+        assertEquals(LineBuffers.SIZE, pooled.length);
+        LineBuffers.release(new byte[LineBuffers.SIZE * 2]);
+        LineBuffers.release(pooled);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(LineBuffers.SIZE, LineBuffers.acquire().length);
+        }
+    }
+
+    private static String random(Random r, String alphabet, int length) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            b.append(alphabet.charAt(r.nextInt(alphabet.length())));
+        }
+        return b.toString();
+    }
+
+}
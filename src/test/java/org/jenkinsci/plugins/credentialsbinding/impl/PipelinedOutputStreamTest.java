@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PipelinedOutputStreamTest {
+
+    @Test public void keepsOrder() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        StringBuilder expected = new StringBuilder();
+        try (OutputStream out = new PipelinedOutputStream(new SlowStream(sink), 4)) {
+            for (int i = 0; i < 1000; i++) {
+                String line = "line " + i + "\n";
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                expected.append(line);
+                if (i % 100 == 0) {
+                    out.flush();
+                    assertEquals(expected.toString(), sink.toString("UTF-8"));
+                }
+            }
+        }
+        assertEquals(expected.toString(), sink.toString("UTF-8"));
+    }
+
+    @Test public void backpressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger written = new AtomicInteger();
+        OutputStream blocked = new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException x) {
+                    throw new IOException(x);
+                }
+                written.incrementAndGet();
+            }
+        };
+        final OutputStream out = new PipelinedOutputStream(blocked, 2);
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 10; i++) {
+                    out.write('x');
+                    accepted.incrementAndGet();
+                }
+                out.close();
+            } catch (IOException x) {
+                throw new AssertionError(x);
+            }
+        });
+        writer.start();
+        Thread.sleep(500);
+        // One write being drained, two queued, one blocked.
+        assertTrue(String.valueOf(accepted.get()), accepted.get() <= 3);
+        release.countDown();
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        assertEquals(10, accepted.get());
+        assertEquals(10, written.get());
+    }
+
+    @Test public void failure() throws Exception {
+        OutputStream broken = new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        };
+        OutputStream out = new PipelinedOutputStream(broken, 2);
+        out.write('x');
+        try {
+            out.flush();
+            fail();
+        } catch (IOException x) {
+            assertEquals("broken", x.getCause().getMessage());
+        }
+    }
+
+    @Test(timeout = 60000) public void stalledStreamDoesNotHoldUpOthers() throws Exception {
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            OutputStream stalled = new PipelinedOutputStream(new OutputStream() {
+                @Override public void write(int b) throws IOException {
+                    try {
+                        release.await();
+                    } catch (InterruptedException x) {
+                        throw new IOException(x);
+                    }
+                }
+            }, 4, worker);
+            stalled.write('x'); // now holding the only worker
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            OutputStream out = new PipelinedOutputStream(sink, 4, worker);
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                String line = "line " + i + "\n";
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                expected.append(line);
+            }
+            out.flush();
+            assertEquals(expected.toString(), sink.toString("UTF-8"));
+            out.close();
+        } finally {
+            release.countDown();
+            worker.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000) public void sharesWorkers() throws Exception {
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try {
+            final AtomicInteger written = new AtomicInteger();
+            OutputStream chatty = new PipelinedOutputStream(new OutputStream() {
+                @Override public void write(int b) throws IOException {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException x) {
+                        throw new IOException(x);
+                    }
+                    written.incrementAndGet();
+                }
+            }, 1000, worker);
+            for (int i = 0; i < 1000; i++) {
+                chatty.write('x');
+            }
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            OutputStream quiet = new PipelinedOutputStream(sink, 4, worker);
+            quiet.write('y');
+            while (sink.size() == 0) {
+                Thread.sleep(10);
+            }
+            // The quiet stream did not have to wait for the chatty one to be drained.
+            assertTrue(String.valueOf(written.get()), written.get() < 1000);
+            chatty.close();
+            quiet.close();
+            assertEquals(1000, written.get());
+        } finally {
+            worker.shutdown();
+        }
+    }
+
+    /** Passes along writes after a short delay. */
+    private static final class SlowStream extends OutputStream {
+        private final OutputStream out;
+        SlowStream(OutputStream out) {
+            this.out = out;
+        }
+        @Override public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            Thread.yield();
+            out.write(b, off, len);
+        }
+    }
+
+}
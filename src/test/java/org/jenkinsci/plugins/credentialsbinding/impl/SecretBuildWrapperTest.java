@@ -28,6 +28,9 @@ import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.domains.Domain;
 import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Item;
@@ -40,13 +43,25 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 import org.junit.ClassRule;
 import org.jvnet.hudson.test.BuildWatcher;
 
+import static org.junit.Assert.*;
+
 public class SecretBuildWrapperTest {
 
     @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
@@ -109,4 +124,77 @@ public class SecretBuildWrapperTest {
         r.assertLogContains("PASSES", r.buildAndAssertSuccess(p));
     }
 
+    @Test public void patternForBuildIsCached() throws Exception {
+        CredentialsProvider.lookupStores(r.jenkins).iterator().next().addCredentials(Domain.global(), new StringCredentialsImpl(CredentialsScope.GLOBAL, "creds", null, Secret.fromString("s3cr3t")));
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildWrappersList().add(new SecretBuildWrapper(Collections.singletonList(new StringBinding("SECRET", "creds"))));
+        final AtomicReference<Pattern> pattern = new AtomicReference<>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+                Pattern first = SecretBuildWrapper.getPatternForBuild(build);
+                assertNotNull(first);
+                assertSame(first, SecretBuildWrapper.getPatternForBuild(build));
+                assertTrue(first.matcher("the s3cr3t is out").find());
+                pattern.set(first);
+                return true;
+            }
+        });
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        assertNotNull(pattern.get());
+        assertNull(SecretBuildWrapper.getPatternForBuild(b));
+    }
+
+    @Test public void secretsForBuildUnderContention() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject();
+        final List<FreeStyleBuild> builds = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            builds.add(r.buildAndAssertSuccess(p));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 32; t++) {
+                final Random random = new Random(t);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        FreeStyleBuild b = builds.get(random.nextInt(builds.size()));
+                        String secret = "secret-" + b.getNumber();
+                        switch (random.nextInt(8)) {
+                        case 0:
+                            SecretBuildWrapper.registerSecrets(b, Collections.singleton(secret));
+                            break;
+                        case 1:
+                            SecretBuildWrapper.unregisterSecrets(b);
+                            break;
+                        case 2:
+                            Pattern pattern = SecretBuildWrapper.getPatternForBuild(b);
+                            if (pattern != null) {
+                                assertEquals("<****>", pattern.matcher("<" + secret + ">").replaceAll("****"));
+                            }
+                            break;
+                        default:
+                            SecretMatcher matcher = SecretBuildWrapper.getMatcherForBuild(b, StandardCharsets.UTF_8);
+                            if (matcher != null) {
+                                byte[] line = ("<" + secret + ">").getBytes(StandardCharsets.UTF_8);
+                                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                                assertTrue(matcher.writeMasked(line, 0, line.length, "****".getBytes(StandardCharsets.UTF_8), out));
+                                assertEquals("<****>", new String(out.toByteArray(), StandardCharsets.UTF_8));
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (FreeStyleBuild b : builds) {
+            SecretBuildWrapper.unregisterSecrets(b);
+            assertNull(SecretBuildWrapper.getPatternForBuild(b));
+        }
+    }
+
 }
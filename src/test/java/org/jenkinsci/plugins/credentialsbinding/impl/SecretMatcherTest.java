@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.credentialsbinding.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.jenkinsci.plugins.credentialsbinding.MultiBinding;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SecretMatcherTest {
+
+    @Test public void basics() {
+        SecretMatcher m = SecretMatcher.compile(Arrays.asList("s3cr3t", "p4$$"));
+        assertFalse(m.isEmpty());
+        assertEquals(6, m.getMaxLength());
+        assertEquals("user=bob pass=**** token=****.", m.replaceAll("user=bob pass=p4$$ token=s3cr3t.", "****"));
+        assertNull(m.replaceAll("nothing to see here", "****"));
+    }
+
+    @Test public void longestSecretWins() {
+        SecretMatcher m = SecretMatcher.compile(Arrays.asList("bc", "abcd", "p4$$", "p4$$someMoreStuff"));
+        assertEquals("x****y", m.replaceAll("xabcdy", "****"));
+        assertEquals("****!", m.replaceAll("p4$$someMoreStuff!", "****"));
+        assertEquals("****some", m.replaceAll("p4$$some", "****"));
+    }
+
+    @Test public void empty() {
+        assertTrue(SecretMatcher.compile(Collections.<String>emptyList()).isEmpty());
+        SecretMatcher m = SecretMatcher.compile(Arrays.asList("", null));
+        assertTrue(m.isEmpty());
+        assertNull(m.replaceAll("anything", "****"));
+    }
+
+    @Test public void sameAsPattern() {
+        Random r = new Random(42);
+        String alphabet = "ab\\EQ|é中";
+        for (int iteration = 0; iteration < 10000; iteration++) {
+            List<String> secrets = new ArrayList<>();
+            for (int i = r.nextInt(6); i >= 0; i--) {
+                secrets.add(random(r, alphabet, r.nextInt(5)));
+            }
+            String text = random(r, alphabet, r.nextInt(30));
+            String pattern = MultiBinding.getPatternStringForSecrets(secrets);
+            String expected = pattern.isEmpty() ? text : Pattern.compile(pattern).matcher(text).replaceAll("****");
+            String actual = SecretMatcher.compile(secrets).replaceAll(text, "****");
+            assertEquals(secrets + " in " + text, expected, actual == null ? text : actual);
+        }
+    }
+
+    @Test public void bytes() throws Exception {
+        for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1}) {
+            SecretMatcher m = SecretMatcher.compile(Arrays.asList("s3cr3t", "pässwörd"), charset);
+            assertEquals(charset, m.getCharset());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] line = "x pässwörd y s3cr3t z\n".getBytes(charset);
+            assertTrue(m.writeMasked(line, 0, line.length, "****".getBytes(charset), out));
+            assertEquals("x **** y **** z\n", new String(out.toByteArray(), charset));
+            out.reset();
+            line = "nothing here\n".getBytes(charset);
+            assertFalse(m.writeMasked(line, 0, line.length, "****".getBytes(charset), out));
+            assertEquals("nothing here\n", new String(out.toByteArray(), charset));
+        }
+        // Not safe to match on bytes, so works on characters instead.
+        assertNull(SecretMatcher.compile(Collections.singleton("s3cr3t"), Charset.forName("UTF-16")).getCharset());
+    }
+
+    @Test public void bytesSameAsPattern() throws Exception {
+        Random r = new Random(42);
+        String alphabet = "ab\\EQ|éÿ中";
+        for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1}) {
+            for (int iteration = 0; iteration < 10000; iteration++) {
+                List<String> secrets = new ArrayList<>();
+                for (int i = r.nextInt(6); i >= 0; i--) {
+                    secrets.add(random(r, alphabet, r.nextInt(5)));
+                }
+                byte[] text = random(r, alphabet, r.nextInt(30)).getBytes(charset);
+                String decoded = new String(text, charset);
+                String pattern = MultiBinding.getPatternStringForSecrets(secrets);
+                String expected = pattern.isEmpty() ? decoded : Pattern.compile(pattern).matcher(decoded).replaceAll("****");
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                SecretMatcher.compile(secrets, charset).writeMasked(text, 0, text.length, "****".getBytes(charset), out);
+                assertEquals(secrets + " in " + decoded, expected, new String(out.toByteArray(), charset));
+            }
+        }
+    }
+
+    @Test public void streaming() throws Exception {
+        Random r = new Random(42);
+        String alphabet = "ab\nc中";
+        for (int iteration = 0; iteration < 10000; iteration++) {
+            List<String> secrets = new ArrayList<>();
+            for (int i = r.nextInt(6); i >= 0; i--) {
+                secrets.add(random(r, alphabet, 1 + r.nextInt(5)));
+            }
+            byte[] text = random(r, alphabet, r.nextInt(40)).getBytes(StandardCharsets.UTF_8);
+            SecretMatcher m = SecretMatcher.compile(secrets, StandardCharsets.UTF_8);
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            m.writeMasked(text, 0, text.length, "****".getBytes(StandardCharsets.UTF_8), expected);
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            SecretMatcher.StreamMasker masker = m.newStreamMasker("****".getBytes(StandardCharsets.UTF_8), actual);
+            for (int off = 0; off < text.length; ) {
+                int len = 1 + r.nextInt(text.length - off);
+                masker.write(text, off, len);
+                off += len;
+                assertTrue(masker.pending() <= m.getMaxLength());
+            }
+            masker.finish();
+            assertEquals(secrets + " in " + new String(text, StandardCharsets.UTF_8), new String(expected.toByteArray(), StandardCharsets.UTF_8), new String(actual.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test public void streamingHoldsBackOnlyPossibleSecrets() throws Exception {
+        SecretMatcher m = SecretMatcher.compile(Collections.singleton("s3cr3t"), StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SecretMatcher.StreamMasker masker = m.newStreamMasker("****".getBytes(StandardCharsets.UTF_8), out);
+        StringBuilder progress = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            byte[] chunk = "#".getBytes(StandardCharsets.UTF_8);
+            masker.write(chunk, 0, chunk.length);
+            progress.append('#');
+        }
+        assertEquals(0, masker.pending());
+        assertEquals(progress.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+        out.reset();
+        byte[] chunk = " s3c".getBytes(StandardCharsets.UTF_8);
+        masker.write(chunk, 0, chunk.length);
+        assertEquals(" ", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(3, masker.pending());
+        chunk = "r3t!".getBytes(StandardCharsets.UTF_8);
+        masker.write(chunk, 0, chunk.length);
+        assertEquals(" ****!", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(0, masker.pending());
+    }
+
+    private static String random(Random r, String alphabet, int length) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            b.append(alphabet.charAt(r.nextInt(alphabet.length())));
+        }
+        return b.toString();
+    }
+
+}
@@ -25,17 +25,33 @@ package org.jenkinsci.plugins.credentialsbinding.impl;
 
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
 import com.cloudbees.plugins.credentials.SecretBytes;
 import com.cloudbees.plugins.credentials.domains.Domain;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleProject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.plaincredentials.impl.FileCredentialsImpl;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import static org.junit.Assert.*;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
 
 public class ZipFileBindingTest {
 
@@ -67,4 +83,82 @@ public class ZipFileBindingTest {
         j.assertBuildStatusSuccess(run);
         j.assertLogContains(contents, run);
     }
+
+    @Test
+    public void sharedExtraction() throws Exception {
+        SecretFileStore.ZIP = true;
+        try {
+            CredentialsStore store = CredentialsProvider.lookupStores(j.jenkins).iterator().next();
+            FileCredentialsImpl fc = new FileCredentialsImpl(CredentialsScope.GLOBAL, "zipfile", null, "a.zip", SecretBytes.fromBytes(IOUtils.toByteArray(ZipFileBindingTest.class.getResource("a.zip"))));
+            store.addCredentials(Domain.global(), fc);
+            FreeStyleProject p = j.createFreeStyleProject();
+            p.getBuildWrappersList().add(new SecretBuildWrapper(Collections.singletonList(new ZipFileBinding("ziploc", "zipfile"))));
+            final List<String> contents = new ArrayList<>();
+            p.getBuildersList().add(new TestBuilder() {
+                @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                    contents.add(new FilePath(build.getWorkspace().getChannel(), build.getEnvironment(listener).get("ziploc")).child("dir/testfile.txt").readToString());
+                    return true;
+                }
+            });
+            j.buildAndAssertSuccess(p);
+            j.buildAndAssertSuccess(p);
+            FilePath zips = SecretFileStore.of(j.jenkins.getWorkspaceFor(p)).child("zip");
+            FilePath first = zips.child(SecretFileStore.key("zipfile", SecretFileStore.digest(fc.getContent())));
+            assertTrue(first.exists());
+
+            ByteArrayOutputStream zip = new ByteArrayOutputStream();
+            try (ZipOutputStream zos = new ZipOutputStream(zip)) {
+                zos.putNextEntry(new ZipEntry("dir/testfile.txt"));
+                zos.write("changed\n".getBytes(StandardCharsets.UTF_8));
+            }
+            FileCredentialsImpl changed = new FileCredentialsImpl(CredentialsScope.GLOBAL, "zipfile", null, "a.zip", SecretBytes.fromBytes(zip.toByteArray()));
+            store.updateCredentials(Domain.global(), fc, changed);
+            j.buildAndAssertSuccess(p);
+            assertTrue(contents.get(0).startsWith("Test of ZipFileBinding"));
+            assertEquals(contents.get(0), contents.get(1));
+            assertEquals("changed\n", contents.get(2));
+            assertFalse("older version deleted", first.exists());
+            assertTrue(zips.child(SecretFileStore.key("zipfile", SecretFileStore.digest(changed.getContent()))).exists());
+        } finally {
+            SecretFileStore.ZIP = false;
+        }
+    }
+
+    @Test
+    public void storeUnaffectedByChanges() throws Exception {
+        SecretFileStore.ZIP = true;
+        try {
+            FileCredentialsImpl fc = new FileCredentialsImpl(CredentialsScope.GLOBAL, "zipfile", null, "a.zip", SecretBytes.fromBytes(IOUtils.toByteArray(ZipFileBindingTest.class.getResource("a.zip"))));
+            CredentialsProvider.lookupStores(j.jenkins).iterator().next().addCredentials(Domain.global(), fc);
+            FreeStyleProject p = j.createFreeStyleProject();
+            p.getBuildWrappersList().add(new SecretBuildWrapper(Collections.singletonList(new ZipFileBinding("ziploc", "zipfile"))));
+            final List<String> contents = new ArrayList<>();
+            p.getBuildersList().add(new TestBuilder() {
+                @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                    FilePath extracted = new FilePath(build.getWorkspace().getChannel(), build.getEnvironment(listener).get("ziploc"));
+                    contents.add(extracted.child("dir/testfile.txt").readToString());
+                    // The build owns the extraction, so nothing stops it from doing this.
+                    extracted.child("dir/testfile.txt").chmod(0600);
+                    extracted.child("dir/testfile.txt").write("modified", "UTF-8");
+                    extracted.child("added.txt").write("added", "UTF-8");
+                    return true;
+                }
+            });
+            j.buildAndAssertSuccess(p);
+            j.buildAndAssertSuccess(p);
+            FilePath tree = SecretFileStore.of(j.jenkins.getWorkspaceFor(p)).child("zip").child(SecretFileStore.key("zipfile", SecretFileStore.digest(fc.getContent()))).child("tree");
+            assertTrue(tree.child("dir/testfile.txt").readToString().startsWith("Test of ZipFileBinding"));
+            assertFalse(tree.child("added.txt").exists());
+            tree.child("dir/testfile.txt").chmod(0600);
+            tree.child("dir/testfile.txt").write("modified", "UTF-8");
+            j.buildAndAssertSuccess(p);
+            assertEquals(3, contents.size());
+            for (String content : contents) {
+                assertTrue(content, content.startsWith("Test of ZipFileBinding"));
+            }
+            assertTrue("stored copy replaced", tree.child("dir/testfile.txt").readToString().startsWith("Test of ZipFileBinding"));
+        } finally {
+            SecretFileStore.ZIP = false;
+        }
+    }
 }